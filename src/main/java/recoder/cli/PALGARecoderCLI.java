@@ -0,0 +1,350 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.cli;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+import recoder.codebook.ProtocolCodebookManager;
+import recoder.data.in.InputData;
+import recoder.data.in.InputDataFactory;
+import recoder.settings.GlobalSettings;
+import recoder.settings.RunParameters;
+import recoder.utils.LogTracker;
+import recoder.utils.enumerate.CodebookParserType;
+import recoder.utils.enumerate.OutputFileType;
+import recoder.utils.enumerate.OutputFormatType;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Command line runner, which translates a file without starting the graphical user interface
+ * The settings are read from an optional properties file and from the arguments; arguments override the file.
+ * Both use the same names, e.g. the argument --input data.txt is the same as the property input=data.txt
+ *
+ * Exit codes:
+ *  0 the file was translated
+ *  1 the arguments or settings are invalid
+ *  2 the translation failed
+ */
+public class PALGARecoderCLI {
+    static{
+        // the default log4j configuration uses the TextAreaAppender, which requires JavaFX
+        // this has to happen before the first logger is created
+        if(System.getProperty("log4j.configurationFile")==null) {
+            System.setProperty("log4j.configurationFile", "log4j2-cli.xml");
+        }
+    }
+
+    private static final Logger logger = LogManager.getLogger(PALGARecoderCLI.class.getName());
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_INVALID_ARGUMENTS = 1;
+    static final int EXIT_FAILURE = 2;
+
+    public static void main(String ... args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * runs the recoder using the arguments
+     * @param args the command line arguments
+     * @return the exit code
+     */
+    static int run(String ... args){
+        Properties properties;
+        RunParameters runParameters;
+        try {
+            properties = parseArguments(args);
+            if(properties.containsKey("help")){
+                System.out.println(getUsage());
+                return EXIT_OK;
+            }
+            runParameters = createRunParameters(properties);
+        } catch (IllegalArgumentException e){
+            System.err.println(e.getMessage());
+            System.err.println(getUsage());
+            return EXIT_INVALID_ARGUMENTS;
+        }
+
+        if(!runParameters.validSettings()){
+            return EXIT_INVALID_ARGUMENTS;
+        }
+        return translate(runParameters);
+    }
+
+    /**
+     * translates the file, logging how long each of the phases took
+     * @param runParameters the settings for this run
+     * @return the exit code
+     */
+    private static int translate(RunParameters runParameters){
+        logger.log(Level.INFO, "Starting run with the following settings:\n{}", runParameters.getSummaryString());
+        long start = System.nanoTime();
+        try {
+            LogTracker.clearLog();
+            long phaseStart = System.nanoTime();
+            ProtocolCodebookManager.createProtocolInfo(runParameters.getProtocolPrefix());
+            InputData inputData = InputDataFactory.getInputData(runParameters);
+            long readTime = elapsedMillis(phaseStart);
+            if(inputData==null){
+                logger.log(Level.ERROR, "Unsupported output file type {}", runParameters.getOutputFileType());
+                return EXIT_FAILURE;
+            }
+
+            phaseStart = System.nanoTime();
+            inputData.translate();
+            long translateTime = elapsedMillis(phaseStart);
+
+            phaseStart = System.nanoTime();
+            inputData.writeOutput();
+            long writeTime = elapsedMillis(phaseStart);
+            LogTracker.logSummary();
+
+            logger.log(Level.INFO, "Timings: read {} ms, translate {} ms, write {} ms, total {} ms", readTime, translateTime, writeTime, elapsedMillis(start));
+            logger.log(Level.INFO, "Finished! Output written to {}", runParameters.getDataOutFileName());
+            return EXIT_OK;
+        } catch (Exception e){
+            logger.log(Level.ERROR, "A severe error occurred:\n{}", e.getMessage(), e);
+            return EXIT_FAILURE;
+        }
+    }
+
+    /**
+     * reads the arguments into properties. If a properties file is given, it is read first, so the other arguments
+     * override its settings
+     * @param args the command line arguments
+     * @return the settings
+     */
+    static Properties parseArguments(String ... args){
+        Properties arguments = new Properties();
+        for(int i=0; i<args.length; i++){
+            if(!args[i].startsWith("--")){
+                throw new IllegalArgumentException("Unexpected argument: "+args[i]);
+            }
+            String name = args[i].substring(2);
+            if(isFlag(name)){
+                arguments.setProperty(name, "true");
+            }
+            else if(i+1<args.length){
+                arguments.setProperty(name, args[++i]);
+            }
+            else {
+                throw new IllegalArgumentException("Missing value for argument: "+args[i]);
+            }
+        }
+
+        Properties properties = new Properties();
+        if(arguments.containsKey("properties")){
+            String propertiesFile = arguments.getProperty("properties");
+            try(InputStream inputStream = new FileInputStream(propertiesFile)){
+                properties.load(inputStream);
+            } catch (IOException e){
+                throw new IllegalArgumentException("Unable to read the properties file "+propertiesFile+": "+e.getMessage());
+            }
+        }
+        properties.putAll(arguments);
+        return properties;
+    }
+
+    /**
+     * returns whether an argument is a flag, which doesn't have a value
+     * @param name name of the argument
+     * @return true/false
+     */
+    private static boolean isFlag(String name){
+        return name.equals("help") || name.equals("wide") || name.equals("streaming") || name.equals("pipelined") || name.equals("refresh-cache") || name.equals("no-grouped-wide");
+    }
+
+    /**
+     * creates the run parameters and sets the global settings, based on the properties
+     * @param properties the settings
+     * @return the run parameters
+     */
+    static RunParameters createRunParameters(Properties properties){
+        String inputFileName = getRequired(properties, "input");
+        String protocolName = properties.getProperty("protocol", GlobalSettings.getDefaultProtocolName());
+        if(GlobalSettings.getProtocolPrefix(protocolName)==null){
+            throw new IllegalArgumentException("Unknown protocol: "+protocolName+". Available protocols: "+GlobalSettings.getProtocols());
+        }
+        String fromLanguage = properties.getProperty("language", GlobalSettings.getLanguageList().get(0));
+        OutputFormatType outputFormatType = getOutputFormatType(properties.getProperty("format", OutputFormatType.DESCRIPTIONS.name()));
+        OutputFileType outputFileType = getOutputFileType(properties.getProperty("output", OutputFileType.TEXT.name()));
+
+        RunParameters runParameters;
+        if(outputFileType==OutputFileType.TRANSMART){
+            runParameters = new RunParameters(inputFileName, protocolName, outputFormatType, outputFileType, fromLanguage,
+                    properties.getProperty("tree", ""), properties.getProperty("study", ""),
+                    getBoolean(properties, "wide"), properties.getProperty("patient-id", ""));
+        }
+        else {
+            runParameters = new RunParameters(inputFileName, protocolName, outputFormatType, outputFileType, fromLanguage);
+        }
+        runParameters.setStreamingMode(getBoolean(properties, "streaming"));
+        runParameters.setTranslationThreads(getInt(properties, "threads", 1));
+        runParameters.setPipelinedMode(getBoolean(properties, "pipelined"));
+        runParameters.setMappedReaderThresholdMB(getInt(properties, "mapped-threshold", (int) runParameters.getMappedReaderThresholdMB()));
+        runParameters.setWideMemoryBudgetMB(getInt(properties, "wide-memory", (int) runParameters.getWideMemoryBudgetMB()));
+        runParameters.setGroupedWideInput(!getBoolean(properties, "no-grouped-wide"));
+
+        if(properties.containsKey("cache-dir")){
+            GlobalSettings.setCacheDirectory(properties.getProperty("cache-dir"));
+        }
+        if(properties.containsKey("cache-ttl")){
+            GlobalSettings.setCacheTimeToLiveHours(getInt(properties, "cache-ttl", 0));
+        }
+        GlobalSettings.setForceCacheRefresh(getBoolean(properties, "refresh-cache"));
+        if(properties.containsKey("translation-cache")){
+            GlobalSettings.setTranslationCacheSize(getInt(properties, "translation-cache", 0));
+        }
+        if(properties.containsKey("log-level")){
+            Level level = Level.getLevel(properties.getProperty("log-level").toUpperCase(Locale.ROOT));
+            if(level==null){
+                throw new IllegalArgumentException("Unknown log level: "+properties.getProperty("log-level"));
+            }
+            Configurator.setRootLevel(level);
+        }
+        if(properties.containsKey("parser")){
+            CodebookParserType codebookParserType = CodebookParserType.getEnum(properties.getProperty("parser"));
+            if(codebookParserType==null){
+                throw new IllegalArgumentException("Unknown parser: "+properties.getProperty("parser"));
+            }
+            GlobalSettings.setCodebookParserType(codebookParserType);
+        }
+        return runParameters;
+    }
+
+    /**
+     * returns the output format type, either by its name (e.g. CODES) or by its pretty string (e.g. "Code only")
+     * @param value the value of the setting
+     * @return the output format type
+     */
+    private static OutputFormatType getOutputFormatType(String value){
+        for(OutputFormatType outputFormatType:OutputFormatType.values()){
+            if(outputFormatType.name().equalsIgnoreCase(value) || outputFormatType.getPrettyString().equalsIgnoreCase(value)){
+                return outputFormatType;
+            }
+        }
+        throw new IllegalArgumentException("Unknown output format: "+value);
+    }
+
+    /**
+     * returns the output file type, either by its name (e.g. TRANSMART) or by its pretty string (e.g. "Text file")
+     * @param value the value of the setting
+     * @return the output file type
+     */
+    private static OutputFileType getOutputFileType(String value){
+        for(OutputFileType outputFileType:OutputFileType.values()){
+            if(outputFileType.name().equalsIgnoreCase(value) || outputFileType.getPrettyString().equalsIgnoreCase(value)){
+                return outputFileType;
+            }
+        }
+        throw new IllegalArgumentException("Unknown output file type: "+value);
+    }
+
+    /**
+     * returns a setting which has to be present
+     * @param properties the settings
+     * @param name       name of the setting
+     * @return the value of the setting
+     */
+    private static String getRequired(Properties properties, String name){
+        String value = properties.getProperty(name);
+        if(value==null || value.trim().equalsIgnoreCase("")){
+            throw new IllegalArgumentException("Missing required setting: "+name);
+        }
+        return value.trim();
+    }
+
+    /**
+     * returns a boolean setting; absent means false
+     * @param properties the settings
+     * @param name       name of the setting
+     * @return true/false
+     */
+    private static boolean getBoolean(Properties properties, String name){
+        return Boolean.parseBoolean(properties.getProperty(name, "false").trim());
+    }
+
+    /**
+     * returns an integer setting
+     * @param properties   the settings
+     * @param name         name of the setting
+     * @param defaultValue value used if the setting is absent
+     * @return the value of the setting
+     */
+    private static int getInt(Properties properties, String name, int defaultValue){
+        String value = properties.getProperty(name);
+        if(value==null){
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e){
+            throw new IllegalArgumentException("Setting "+name+" should be a number, but is: "+value);
+        }
+    }
+
+    /**
+     * returns the milliseconds since a start time
+     * @param start start time in nanoseconds
+     * @return milliseconds
+     */
+    private static long elapsedMillis(long start){
+        return (System.nanoTime()-start)/1000000;
+    }
+
+    /**
+     * returns the usage text
+     * @return the usage text
+     */
+    private static String getUsage(){
+        return "Usage: java -cp <jar> recoder.cli.PALGARecoderCLI --input <file> [options]\n" +
+                "  --properties <file>    read the settings from a properties file (same names, without the dashes)\n" +
+                "  --input <file>         the data file to translate\n" +
+                "  --protocol <name>      the protocol, one of "+GlobalSettings.getProtocols()+" (default "+GlobalSettings.getDefaultProtocolName()+")\n" +
+                "  --language <language>  the source language (default "+GlobalSettings.getLanguageList().get(0)+")\n" +
+                "  --format <format>      DESCRIPTIONS, CODES, CODESYSTEM_AND_CODES, CODES_AND_DESCRIPTIONS or CODESYSTEM_AND_CODES_AND_DESCRIPTIONS (default DESCRIPTIONS)\n" +
+                "  --output <type>        TEXT or TRANSMART (default TEXT)\n" +
+                "  --tree <file>          tranSMART tree template\n" +
+                "  --study <name>         tranSMART study name\n" +
+                "  --patient-id <column>  tranSMART patient id column\n" +
+                "  --wide                 export the tranSMART data in wide format\n" +
+                "  --streaming            don't keep the data lines in memory; the data file is read twice instead\n" +
+                "  --threads <n>          number of threads used to translate the data lines and render the wide rows (default 1)\n" +
+                "  --pipelined            read, translate and write the data lines at the same time\n" +
+                "  --mapped-threshold <MB> data files larger than this are read using memory mapping (default -1, never)\n" +
+                "  --wide-memory <MB>     memory for the wide format lines, after which temporary files are used (default 256, -1 never)\n" +
+                "  --no-grouped-wide      don't write the wide format patient by patient, even if the data is grouped by patient\n" +
+                "  --cache-dir <dir>      codebook cache directory\n" +
+                "  --cache-ttl <hours>    how long cached codebooks are used; 0 disables the cache\n" +
+                "  --refresh-cache        retrieve the codebooks even if a cached version is available\n" +
+                "  --parser <parser>      codebook parser, DOM or StAX\n" +
+                "  --translation-cache <n> number of translated values that are remembered (default "+GlobalSettings.getTranslationCacheSize()+", 0 disables it)\n" +
+                "  --log-level <level>    log level of the run, e.g. ERROR, WARN, INFO or DEBUG (default INFO)\n" +
+                "  --help                 show this text\n" +
+                "Exit codes: 0 success, 1 invalid arguments or settings, 2 the translation failed";
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.codebook;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import recoder.settings.GlobalSettings;
+import recoder.utils.ArtDecorCalls;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * local cache for the information we retrieve from art-decor
+ * - codebooks are stored as a compact binary snapshot of the parsed DecorCodebook, keyed by dataset id, language and version
+ * - project indices (which versions of a protocol exist) are small, so these are stored as the xml we received
+ * - the roman numbers resolved for the headernames using a codebook are stored next to its snapshot. They are only
+ *   valid for that snapshot, so they are ignored once the snapshot is replaced
+ *
+ * An entry is used as long as it is younger than the time to live in the GlobalSettings. If art-decor cannot be
+ * reached, an expired entry is used anyway, which allows us to work offline.
+ */
+class CodebookCache {
+    private static final Logger logger = LogManager.getLogger(CodebookCache.class.getName());
+    // increase when the snapshot layout changes, which makes old snapshots invalid
+    private static final int snapshotFormat = 1;
+    private static final int snapshotMagic = 0x50414c47;
+
+    /**
+     * attempts to fill a codebook using the cached snapshot
+     * @param decorCodebook  the codebook to fill
+     * @param datasetId      identifier of the codebook
+     * @param languageFrom   source language of the codebook
+     * @param version        version of the codebook
+     * @param allowExpired   whether an expired snapshot may be used
+     * @return true if the codebook was filled using the cache
+     */
+    static boolean readCodebook(DecorCodebook decorCodebook, String datasetId, String languageFrom, String version, boolean allowExpired){
+        File file = getCodebookFile(datasetId, languageFrom, version);
+        if(!mayUse(file, allowExpired)){
+            return false;
+        }
+
+        long start = System.nanoTime();
+        try(DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            if(dataInputStream.readInt()!=snapshotMagic || dataInputStream.readInt()!=snapshotFormat){
+                logger.log(Level.INFO, "Codebook cache: ignoring {}, as it was written in an unknown format", file.getName());
+                return false;
+            }
+            decorCodebook.readSnapshot(dataInputStream);
+        } catch (IOException e){
+            logger.log(Level.WARN, "Codebook cache: unable to read {}: {}", file.getName(), e.getMessage());
+            return false;
+        }
+        logger.log(Level.INFO, "Codebook cache hit for dataset {} ({}, version {}); loaded in {} ms", datasetId, languageFrom, version, (System.nanoTime()-start)/1000000);
+        return true;
+    }
+
+    /**
+     * stores a snapshot of a codebook in the cache
+     * @param decorCodebook  the codebook to store
+     * @param datasetId      identifier of the codebook
+     * @param languageFrom   source language of the codebook
+     * @param version        version of the codebook
+     */
+    static void writeCodebook(DecorCodebook decorCodebook, String datasetId, String languageFrom, String version){
+        if(!isEnabled()){
+            return;
+        }
+        File file = getCodebookFile(datasetId, languageFrom, version);
+        try {
+            File tempFile = createTempFile(file);
+            try (DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                dataOutputStream.writeInt(snapshotMagic);
+                dataOutputStream.writeInt(snapshotFormat);
+                decorCodebook.writeSnapshot(dataOutputStream);
+            }
+            moveIntoPlace(tempFile, file);
+        } catch (IOException e){
+            logger.log(Level.WARN, "Codebook cache: unable to store {}: {}", file.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * reads the roman numbers resolved using a codebook, if they were stored for the cached snapshot of the codebook
+     * @param romanMemo    map which receives headername -> roman number
+     * @param datasetId    identifier of the codebook
+     * @param languageFrom source language of the codebook
+     * @param version      version of the codebook
+     */
+    static void readRomanMemo(Map<String, String> romanMemo, String datasetId, String languageFrom, String version){
+        File file = getRomanMemoFile(datasetId, languageFrom, version);
+        // the memo is written after the snapshot; if it is older, the snapshot was replaced since
+        if(!isEnabled() || !file.isFile() || file.lastModified()<getCodebookFile(datasetId, languageFrom, version).lastModified()){
+            return;
+        }
+
+        try(DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            if(dataInputStream.readInt()!=snapshotMagic || dataInputStream.readInt()!=snapshotFormat){
+                return;
+            }
+            int nrHeaderNames = dataInputStream.readInt();
+            for(int i=0; i<nrHeaderNames; i++){
+                String headerName = readString(dataInputStream);
+                romanMemo.put(headerName, readString(dataInputStream));
+            }
+        } catch (IOException e){
+            logger.log(Level.WARN, "Codebook cache: unable to read {}: {}", file.getName(), e.getMessage());
+            romanMemo.clear();
+            return;
+        }
+        logger.log(Level.INFO, "Codebook cache: loaded the roman numbers of {} headernames for version {}", romanMemo.size(), version);
+    }
+
+    /**
+     * stores the roman numbers resolved using a codebook
+     * @param romanMemo    headername -> roman number
+     * @param datasetId    identifier of the codebook
+     * @param languageFrom source language of the codebook
+     * @param version      version of the codebook
+     */
+    static void writeRomanMemo(Map<String, String> romanMemo, String datasetId, String languageFrom, String version){
+        if(!isEnabled() || !getCodebookFile(datasetId, languageFrom, version).isFile()){
+            return;
+        }
+        File file = getRomanMemoFile(datasetId, languageFrom, version);
+        try {
+            File tempFile = createTempFile(file);
+            try (DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                dataOutputStream.writeInt(snapshotMagic);
+                dataOutputStream.writeInt(snapshotFormat);
+                // copy first, as the memo may still be extended by other threads
+                Map<String, String> romans = new HashMap<>(romanMemo);
+                dataOutputStream.writeInt(romans.size());
+                for(Map.Entry<String, String> entry:romans.entrySet()){
+                    writeString(dataOutputStream, entry.getKey());
+                    writeString(dataOutputStream, entry.getValue());
+                }
+            }
+            moveIntoPlace(tempFile, file);
+        } catch (IOException e){
+            logger.log(Level.WARN, "Codebook cache: unable to store {}: {}", file.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * returns the project index for a prefix, either from the cache or from art-decor
+     * @param prefix prefix of the protocol
+     * @return input stream with the project index xml
+     * @throws IOException when the project index is not cached and cannot be retrieved
+     */
+    static InputStream getProjectIndex(String prefix) throws IOException{
+        String uri = ArtDecorCalls.getProjectIndexURI(prefix);
+        File file = getProjectIndexFile(prefix);
+        if(mayUse(file, false)){
+            logger.log(Level.INFO, "Codebook cache hit for the project index of {}", prefix);
+            return new ByteArrayInputStream(Files.readAllBytes(file.toPath()));
+        }
+
+        long start = System.nanoTime();
+        byte [] projectIndex;
+        try {
+            projectIndex = retrieve(uri);
+        } catch (IOException e){
+            // art-decor cannot be reached, try an expired entry
+            if(mayUse(file, true)){
+                logger.log(Level.WARN, "Unable to retrieve {}; using the expired cached project index of {} instead", uri, prefix);
+                return new ByteArrayInputStream(Files.readAllBytes(file.toPath()));
+            }
+            throw e;
+        }
+        logger.log(Level.INFO, "Codebook cache miss for the project index of {}; retrieved in {} ms", prefix, (System.nanoTime()-start)/1000000);
+
+        if(isEnabled()){
+            try {
+                File tempFile = createTempFile(file);
+                Files.write(tempFile.toPath(), projectIndex);
+                moveIntoPlace(tempFile, file);
+            } catch (IOException e){
+                logger.log(Level.WARN, "Codebook cache: unable to store {}: {}", file.getName(), e.getMessage());
+            }
+        }
+        return new ByteArrayInputStream(projectIndex);
+    }
+
+    /**
+     * writes a string to a snapshot; unlike writeUTF this has no limit on the length of the string
+     * @param dataOutputStream the snapshot
+     * @param value            the string to write, may be null
+     * @throws IOException when writing fails
+     */
+    static void writeString(DataOutputStream dataOutputStream, String value) throws IOException{
+        if(value==null){
+            dataOutputStream.writeInt(-1);
+            return;
+        }
+        byte [] bytes = value.getBytes("UTF-8");
+        dataOutputStream.writeInt(bytes.length);
+        dataOutputStream.write(bytes);
+    }
+
+    /**
+     * reads a string which was written using writeString
+     * @param dataInputStream the snapshot
+     * @return the string, may be null
+     * @throws IOException when reading fails
+     */
+    static String readString(DataInputStream dataInputStream) throws IOException{
+        int length = dataInputStream.readInt();
+        if(length<0){
+            return null;
+        }
+        byte [] bytes = new byte[length];
+        dataInputStream.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * returns whether the cache is enabled
+     * @return true/false
+     */
+    static boolean isEnabled(){
+        return GlobalSettings.getCacheTimeToLiveHours()>0;
+    }
+
+    /**
+     * returns whether a cached file may be used
+     * @param file         the cached file
+     * @param allowExpired whether the file may be used if it's older than the time to live
+     * @return true/false
+     */
+    private static boolean mayUse(File file, boolean allowExpired){
+        if(!isEnabled() || !file.isFile()){
+            return false;
+        }
+        if(allowExpired){
+            return true;
+        }
+        if(GlobalSettings.forceCacheRefresh()){
+            return false;
+        }
+        long ageMillis = System.currentTimeMillis()-file.lastModified();
+        return ageMillis < GlobalSettings.getCacheTimeToLiveHours()*60*60*1000;
+    }
+
+    /**
+     * retrieves the contents of a uri
+     * @param uri the uri to retrieve
+     * @return the contents
+     * @throws IOException when the uri cannot be retrieved
+     */
+    private static byte [] retrieve(String uri) throws IOException{
+        try(InputStream inputStream = new URL(uri).openStream()){
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            byte [] buffer = new byte[8192];
+            int read;
+            while((read=inputStream.read(buffer))!=-1){
+                byteArrayOutputStream.write(buffer, 0, read);
+            }
+            return byteArrayOutputStream.toByteArray();
+        }
+    }
+
+    /**
+     * creates a temporary file next to the file we wish to write, so the cached file is replaced in one go
+     * @param file the file we wish to write
+     * @return the temporary file
+     * @throws IOException when the file cannot be created
+     */
+    private static File createTempFile(File file) throws IOException{
+        File directory = file.getParentFile();
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("cannot create directory "+directory);
+        }
+        return File.createTempFile(file.getName(), ".tmp", directory);
+    }
+
+    /**
+     * replaces the cached file by the temporary file
+     * @param tempFile the temporary file
+     * @param file     the cached file
+     * @throws IOException when the file cannot be moved
+     */
+    private static void moveIntoPlace(File tempFile, File file) throws IOException{
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /**
+     * returns the cache file for a codebook
+     * @param datasetId      identifier of the codebook
+     * @param languageFrom   source language of the codebook
+     * @param version        version of the codebook
+     * @return the cache file
+     */
+    private static File getCodebookFile(String datasetId, String languageFrom, String version){
+        return new File(GlobalSettings.getCacheDirectory(), toFileName("codebook_"+datasetId+"_"+languageFrom+"_"+version)+".bin");
+    }
+
+    /**
+     * returns the cache file for the roman numbers resolved using a codebook
+     * @param datasetId      identifier of the codebook
+     * @param languageFrom   source language of the codebook
+     * @param version        version of the codebook
+     * @return the cache file
+     */
+    private static File getRomanMemoFile(String datasetId, String languageFrom, String version){
+        return new File(GlobalSettings.getCacheDirectory(), toFileName("romans_"+datasetId+"_"+languageFrom+"_"+version)+".bin");
+    }
+
+    /**
+     * returns the cache file for a project index
+     * @param prefix prefix of the protocol
+     * @return the cache file
+     */
+    private static File getProjectIndexFile(String prefix){
+        return new File(GlobalSettings.getCacheDirectory(), toFileName("projectindex_"+prefix)+".xml");
+    }
+
+    /**
+     * replaces characters which may cause trouble in a file name
+     * @param name the name
+     * @return name which can be used as file name
+     */
+    private static String toFileName(String name){
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
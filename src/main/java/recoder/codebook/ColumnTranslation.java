@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.codebook;
+
+import recoder.utils.enumerate.OutputFormatType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * the translation of the values of a single column, resolved once before the values are translated
+ * For each protocol version that is present in the data, it stores the codebook and the concept to use. This means
+ * that translating a value only requires finding the value in the concept, instead of finding the codebook and the
+ * concept for every value.
+ * The versions are identified by their index in the list of versions that was used to create the translation.
+ * Values that cannot be translated are collected and counted per version and reported by the TranslationDiagnostics
+ * once the translation is done.
+ */
+public class ColumnTranslation {
+    private final String headerName;
+    private final OutputFormatType outputType;
+    // the codebook and concept for each version index; the concept is null if the codebook doesn't know the column
+    private final DecorCodebook [] codebooks;
+    private final Concept [] concepts;
+    // housekeeping columns use the same codebook for all versions
+    private final boolean versionIndependent;
+    // the codebook reports a missing column only once; if two threads race here the LogTracker still shows it once
+    private final boolean [] missingHeaderLogged;
+    // the values that could not be translated and how often they occurred, per version index; safe to fill from
+    // several threads
+    private final UntranslatedValues [] untranslatedValues;
+
+    /**
+     * new column translation
+     * @param headerName         the headername of the column, without roman number
+     * @param outputType         the output format type
+     * @param codebooks          the codebook for each version index, may contain nulls
+     * @param versionIndependent whether the first codebook is used for all versions
+     */
+    ColumnTranslation(String headerName, OutputFormatType outputType, DecorCodebook [] codebooks, boolean versionIndependent){
+        this.headerName = headerName;
+        this.outputType = outputType;
+        this.codebooks = codebooks;
+        this.versionIndependent = versionIndependent;
+        this.concepts = new Concept[codebooks.length];
+        this.missingHeaderLogged = new boolean[codebooks.length];
+        this.untranslatedValues = new UntranslatedValues[codebooks.length];
+        for(int i=0; i<codebooks.length; i++){
+            if(codebooks[i]!=null){
+                concepts[i] = codebooks[i].getConcept(headerName);
+            }
+            untranslatedValues[i] = new UntranslatedValues();
+        }
+    }
+
+    /**
+     * translate a value
+     * @param value        value to be translated
+     * @param versionIndex index of the protocol version of the line the value belongs to
+     * @return translated value or the original value if it cannot be translated
+     */
+    public String translateValue(String value, int versionIndex){
+        String translatedValue = lookupValue(value, versionIndex);
+        if(translatedValue==null){
+            countUntranslated(value, versionIndex);
+            return value;
+        }
+        return translatedValue;
+    }
+
+    /**
+     * translate a value without counting it if it cannot be translated
+     * Used when the result of the lookup is remembered; countUntranslated should then be called for each
+     * occurrence of a value for which null was returned.
+     * @param value        value to be translated
+     * @param versionIndex index of the protocol version of the line the value belongs to
+     * @return translated value, the original value if the column has no codebook entry or null if the codebook
+     * doesn't contain the value
+     */
+    public String lookupValue(String value, int versionIndex){
+        int index = versionIndependent ? 0 : versionIndex;
+        DecorCodebook decorCodebook = codebooks[index];
+        if(decorCodebook==null || value.isEmpty()){
+            return value;
+        }
+        Concept concept = concepts[index];
+        if(concept==null){
+            if(!missingHeaderLogged[index]) {
+                missingHeaderLogged[index] = true;
+                decorCodebook.logMissingHeaderName(headerName);
+            }
+            return value;
+        }
+        return decorCodebook.lookupConceptValue(concept, outputType, value);
+    }
+
+    /**
+     * counts an occurrence of a value that could not be translated
+     * @param value        the value
+     * @param versionIndex index of the protocol version of the line the value belongs to
+     */
+    public void countUntranslated(String value, int versionIndex){
+        untranslatedValues[versionIndependent ? 0 : versionIndex].add(value);
+    }
+
+    /**
+     * returns whether the column uses the same codebook for all versions, in which case a value is translated the
+     * same way for each version
+     * @return true/false
+     */
+    public boolean isVersionIndependent(){
+        return versionIndependent;
+    }
+
+    /**
+     * returns whether the column has values to translate for at least one version; if not, e.g. for ids and free
+     * text, every value is returned as it is
+     * @return true/false
+     */
+    public boolean hasValueList(){
+        for(Concept concept:concepts){
+            if(concept!=null && concept.hasConceptListItems()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * returns the headername of the column, without roman number
+     * @return the headername
+     */
+    String getHeaderName(){
+        return headerName;
+    }
+
+    /**
+     * returns the number of version indices of the translation
+     * @return the number of version indices
+     */
+    int getNrVersionIndices(){
+        return codebooks.length;
+    }
+
+    /**
+     * returns the codebook version of a version index
+     * @param versionIndex the version index
+     * @return the codebook version or null if there is no codebook for the version index
+     */
+    String getCodebookVersion(int versionIndex){
+        return codebooks[versionIndex]==null ? null : codebooks[versionIndex].getVersion();
+    }
+
+    /**
+     * returns the values that could not be translated for a version index
+     * @param versionIndex the version index
+     * @return the untranslated values
+     */
+    UntranslatedValues getUntranslatedValues(int versionIndex){
+        return untranslatedValues[versionIndex];
+    }
+
+    /**
+     * the values of a column that could not be translated using a codebook version, and how often they occurred
+     * To bound the memory used for columns with many distinct values, at most maxValues values are kept; the
+     * occurrences of the other values are only counted in the total.
+     */
+    static class UntranslatedValues {
+        private static final int maxValues = 1000;
+        private final Map<String, LongAdder> valueCounts = new ConcurrentHashMap<>();
+        private final LongAdder count = new LongAdder();
+        private volatile boolean incomplete = false;
+
+        /**
+         * counts an occurrence of a value that could not be translated
+         * @param value the value
+         */
+        private void add(String value){
+            count.increment();
+            LongAdder valueCount = valueCounts.get(value);
+            if(valueCount==null){
+                if(valueCounts.size()>=maxValues){
+                    incomplete = true;
+                    return;
+                }
+                valueCount = valueCounts.computeIfAbsent(value, k -> new LongAdder());
+            }
+            valueCount.increment();
+        }
+
+        /**
+         * returns the values that could not be translated, with the number of times they occurred
+         * @return the values and their counts
+         */
+        Map<String, LongAdder> getValueCounts(){
+            return valueCounts;
+        }
+
+        /**
+         * returns the number of times a value could not be translated, including the values that were not kept
+         * @return the number of occurrences
+         */
+        long getCount(){
+            return count.sum();
+        }
+
+        /**
+         * returns whether there were more values that could not be translated than could be kept
+         * @return true/false
+         */
+        boolean isIncomplete(){
+            return incomplete;
+        }
+    }
+}
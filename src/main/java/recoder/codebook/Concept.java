@@ -21,6 +21,9 @@ package recoder.codebook;
 
 import recoder.utils.enumerate.OutputFormatType;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -55,30 +58,49 @@ class Concept {
         return conceptId;
     }
 
+    /**
+     * returns the column name in the PALGA dataset for this concept
+     * @return the column name
+     */
+    String getPalgaColName() {
+        return palgaColName;
+    }
+
+    /**
+     * returns whether the concept has values to translate
+     * @return true/false
+     */
+    boolean hasConceptListItems() {
+        return hasConceptListItems;
+    }
+
     /**
      * attempts to translate a value, returning it in the desired output format
      * @param value the value to translate
      * @param type  the outputformat type
-     * @return  a translated value or the original value
-     * @throws Exception
+     * @return  a translated value, the original value if the concept has no values to translate, or null if the
+     *          value doesn't exist in the concept
      */
-    String translateValue(String value, OutputFormatType type) throws Exception{
+    String translateValue(String value, OutputFormatType type) {
         if(!hasConceptListItems || value.equalsIgnoreCase("")) {
             return value;
         }
-        if(!valuesMap.containsKey(value)){
-            throw new Exception("value \""+value+"\" ("+palgaColName+") doesn't seem to exist.");
+        ConceptListItem conceptListItem = valuesMap.get(value);
+        if(conceptListItem==null){
+            return null;
         }
-        return valuesMap.get(value).getTranslation(type);
+        return conceptListItem.getTranslation(type);
     }
 
     /**
      * attempts to translate the header
      * @param outputType the output format type
-     * @return  translated header
-     * @throws Exception
+     * @return  translated header or null if the concept has no terminology
      */
-    String translateHeaderName(OutputFormatType outputType) throws Exception {
+    String translateHeaderName(OutputFormatType outputType) {
+        if(conceptTerminology==null){
+            return null;
+        }
         return conceptTerminology.getTranslation(outputType);
     }
 
@@ -105,6 +127,61 @@ class Concept {
         conceptTerminology = new ConceptTerminology(conceptCode, codeSystemName, displayName);
     }
 
+    /**
+     * writes the concept to a codebook cache snapshot
+     * @param dataOutputStream the snapshot
+     * @throws IOException when writing fails
+     */
+    void writeSnapshot(DataOutputStream dataOutputStream) throws IOException{
+        CodebookCache.writeString(dataOutputStream, conceptId);
+        CodebookCache.writeString(dataOutputStream, palgaColName);
+
+        dataOutputStream.writeBoolean(conceptTerminology!=null);
+        if(conceptTerminology!=null){
+            CodebookCache.writeString(dataOutputStream, conceptTerminology.conceptCode);
+            CodebookCache.writeString(dataOutputStream, conceptTerminology.conceptCodeSystem);
+            CodebookCache.writeString(dataOutputStream, conceptTerminology.conceptDisplayName);
+        }
+
+        dataOutputStream.writeInt(valuesMap.size());
+        for(Map.Entry<String, ConceptListItem> entry:valuesMap.entrySet()){
+            ConceptListItem conceptListItem = entry.getValue();
+            CodebookCache.writeString(dataOutputStream, entry.getKey());
+            CodebookCache.writeString(dataOutputStream, conceptListItem.valueCode);
+            CodebookCache.writeString(dataOutputStream, conceptListItem.valueCodeSystem);
+            CodebookCache.writeString(dataOutputStream, conceptListItem.valueDisplayName);
+        }
+    }
+
+    /**
+     * reads a concept from a codebook cache snapshot
+     * @param dataInputStream the snapshot
+     * @return the concept
+     * @throws IOException when reading fails
+     */
+    static Concept readSnapshot(DataInputStream dataInputStream) throws IOException{
+        String conceptId = CodebookCache.readString(dataInputStream);
+        String palgaColName = CodebookCache.readString(dataInputStream);
+        Concept concept = new Concept(conceptId, palgaColName);
+
+        if(dataInputStream.readBoolean()){
+            String conceptCode = CodebookCache.readString(dataInputStream);
+            String codeSystemName = CodebookCache.readString(dataInputStream);
+            String displayName = CodebookCache.readString(dataInputStream);
+            concept.addConceptTerminology(conceptCode, codeSystemName, displayName);
+        }
+
+        int nrValues = dataInputStream.readInt();
+        for(int i=0; i<nrValues; i++){
+            String value = CodebookCache.readString(dataInputStream);
+            String valueCode = CodebookCache.readString(dataInputStream);
+            String valueCodeSystem = CodebookCache.readString(dataInputStream);
+            String valueDisplayName = CodebookCache.readString(dataInputStream);
+            concept.addConceptListItem(valueCode, valueCodeSystem, valueDisplayName, value);
+        }
+        return concept;
+    }
+
     /**
      * class which defines a single concept list item (one option's code, description and codesystem)
      */
@@ -112,6 +189,9 @@ class Concept {
         private String valueCode;
         private String valueCodeSystem;
         private String valueDisplayName;
+        // the translation for each output format type, by ordinal; created when first asked for. Threads that
+        // race here create and store equal strings
+        private final String [] translations = new String[OutputFormatType.values().length];
 
         /**
          * new conceptlistitem
@@ -129,23 +209,14 @@ class Concept {
          * returns the translation, based on the output format type
          * @param type output format type
          * @return  translated value
-         * @throws Exception
          */
-        private String getTranslation(OutputFormatType type) throws Exception{
-            switch(type){
-                case CODES:
-                    return valueCode;
-                case CODES_AND_DESCRIPTIONS:
-                    return valueCode+":"+valueDisplayName;
-                case CODESYSTEM_AND_CODES:
-                    return valueCodeSystem+":"+valueCode;
-                case DESCRIPTIONS:
-                    return valueDisplayName;
-                case CODESYSTEM_AND_CODES_AND_DESCRIPTIONS:
-                    return valueCodeSystem+":"+valueCode+":"+valueDisplayName;
-                default:
-                    throw new Exception("type "+type+" does not exist");
+        private String getTranslation(OutputFormatType type) {
+            String translation = translations[type.ordinal()];
+            if(translation==null){
+                translation = createTranslation(type, valueCode, valueCodeSystem, valueDisplayName);
+                translations[type.ordinal()] = translation;
             }
+            return translation;
         }
 
     }
@@ -158,6 +229,9 @@ class Concept {
         private String conceptCode;
         private String conceptCodeSystem;
         private String conceptDisplayName;
+        // the translation for each output format type, by ordinal; created when first asked for. Threads that
+        // race here create and store equal strings
+        private final String [] translations = new String[OutputFormatType.values().length];
 
         /**
          * new terminology
@@ -175,23 +249,39 @@ class Concept {
          * returns the translation, based on the output format type
          * @param type output format type
          * @return  translated value
-         * @throws Exception
          */
-        private String getTranslation(OutputFormatType type) throws Exception{
-            switch(type){
-                case CODES:
-                    return conceptCode;
-                case CODES_AND_DESCRIPTIONS:
-                    return conceptCode+":"+conceptDisplayName;
-                case CODESYSTEM_AND_CODES:
-                    return conceptCodeSystem+":"+conceptCode;
-                case DESCRIPTIONS:
-                    return conceptDisplayName;
-                case CODESYSTEM_AND_CODES_AND_DESCRIPTIONS:
-                    return conceptCodeSystem+":"+conceptCode+":"+conceptDisplayName;
-                default:
-                    throw new Exception("type "+type+" does not exist");
+        private String getTranslation(OutputFormatType type) {
+            String translation = translations[type.ordinal()];
+            if(translation==null){
+                translation = createTranslation(type, conceptCode, conceptCodeSystem, conceptDisplayName);
+                translations[type.ordinal()] = translation;
             }
+            return translation;
+        }
+    }
+
+    /**
+     * creates the translation of a code, based on the output format type
+     * @param type        output format type
+     * @param code        the code
+     * @param codeSystem  codesystem of the code
+     * @param displayName textual representation of the code
+     * @return  the translation
+     */
+    private static String createTranslation(OutputFormatType type, String code, String codeSystem, String displayName) {
+        switch(type){
+            case CODES:
+                return code;
+            case CODES_AND_DESCRIPTIONS:
+                return code+":"+displayName;
+            case CODESYSTEM_AND_CODES:
+                return codeSystem+":"+code;
+            case DESCRIPTIONS:
+                return displayName;
+            case CODESYSTEM_AND_CODES_AND_DESCRIPTIONS:
+                return codeSystem+":"+code+":"+displayName;
+            default:
+                throw new IllegalArgumentException("type "+type+" does not exist");
         }
     }
 }
@@ -19,17 +19,29 @@
 
 package recoder.codebook;
 
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import recoder.settings.GlobalSettings;
 import recoder.utils.ArtDecorCalls;
 import recoder.utils.LogTracker;
+import recoder.utils.Romans;
+import recoder.utils.enumerate.CodebookParserType;
 import recoder.utils.enumerate.OutputFormatType;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * DecorCodebook for a single version of a PALGA Protocol
@@ -48,9 +60,17 @@ import java.util.*;
  * Concept Value translation = preferred displayName --> concept code / displayName
  */
 class DecorCodebook {
+    private static final Logger logger = LogManager.getLogger(DecorCodebook.class.getName());
     private Map<String, Concept> palgaColNameToConceptMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
     private Map<String, Concept> idToConceptMap = new HashMap<>();
     private String version;
+    private String languageFrom;
+    private String datasetId;
+
+    // headername -> the roman number it ends with ("" if none), as resolved using this codebook
+    // the memo is stored in the codebook cache, next to the snapshot of the codebook
+    private final Map<String, String> romanMemo = new ConcurrentHashMap<>();
+    private volatile boolean romanMemoChanged = false;
 
     /**
      * new Decor codebook
@@ -60,7 +80,31 @@ class DecorCodebook {
      */
     DecorCodebook(String languageFrom, String datasetId, String version){
         this.version = version;
-        createCodebook(ArtDecorCalls.getRetrieveDatasetURI(datasetId, languageFrom));
+        this.languageFrom = languageFrom;
+        this.datasetId = datasetId;
+        if(CodebookCache.readCodebook(this, datasetId, languageFrom, version, false)) {
+            CodebookCache.readRomanMemo(romanMemo, datasetId, languageFrom, version);
+        }
+        else {
+            retrieveCodebook(languageFrom, datasetId);
+        }
+    }
+
+    /**
+     * retrieves the codebook from art-decor and stores it in the cache. If retrieving fails, an expired
+     * cached version is used if we have one
+     * @param languageFrom source language
+     * @param datasetId    identifier of the codebook
+     */
+    private void retrieveCodebook(String languageFrom, String datasetId){
+        long start = System.nanoTime();
+        if(createCodebook(ArtDecorCalls.getRetrieveDatasetURI(datasetId, languageFrom))){
+            logger.log(Level.INFO, "Codebook cache miss for dataset {} ({}, version {}); retrieved and parsed ({}) in {} ms", datasetId, languageFrom, version, GlobalSettings.getCodebookParserType().getPrettyString(), (System.nanoTime()-start)/1000000);
+            CodebookCache.writeCodebook(this, datasetId, languageFrom, version);
+        }
+        else if(CodebookCache.readCodebook(this, datasetId, languageFrom, version, true)){
+            LogTracker.logMessage(this.getClass(), "Using an expired cached version of codebook version "+version+" instead.");
+        }
     }
 
     /**
@@ -71,23 +115,47 @@ class DecorCodebook {
      * @return  translated value
      */
     String translateConceptValue(OutputFormatType outputType, String value, String headerName) {
-        Concept concept;
-        String translatedValue = value;
-        try{
-            if(palgaColNameToConceptMap.containsKey(headerName)) {
-                concept = palgaColNameToConceptMap.get(headerName);
-                translatedValue = concept.translateValue(value, outputType);
-            }
-            else {
-                throw new Exception("Headername "+headerName + "doesn't exist. ");
-            }
-        } catch (Exception e){
-            String message = e.getMessage() + " Codebook version "+version+". Value will not be translated.";
-            LogTracker.logMessage(this.getClass(), message);
+        Concept concept = palgaColNameToConceptMap.get(headerName);
+        if(concept==null) {
+            LogTracker.logMessage(this.getClass(), "Headername "+headerName + "doesn't exist.  Codebook version "+version+". Value will not be translated.");
+            return value;
+        }
+        return translateConceptValue(concept, outputType, value);
+    }
+
+    /**
+     * translate a value of a concept which was already looked up in this codebook
+     * @param concept    the concept to which the value belongs
+     * @param outputType type of output format desired
+     * @param value      value to translated
+     * @return  translated value
+     */
+    String translateConceptValue(Concept concept, OutputFormatType outputType, String value) {
+        String translatedValue = lookupConceptValue(concept, outputType, value);
+        if(translatedValue==null){
+            LogTracker.logMessage(this.getClass(), "value \""+value+"\" ("+concept.getPalgaColName()+") doesn't seem to exist. Codebook version "+version+". Value will not be translated.");
+            return value;
         }
         return translatedValue;
     }
 
+    /**
+     * looks up the translation of a value of a concept which was already looked up in this codebook, without
+     * reporting values that cannot be translated
+     * @param concept    the concept to which the value belongs
+     * @param outputType type of output format desired
+     * @param value      value to translated
+     * @return  translated value or null if the value doesn't exist in the concept
+     */
+    String lookupConceptValue(Concept concept, OutputFormatType outputType, String value) {
+        // values of a concept without a value list are returned as they are, so caching them would only push out
+        // the values that are translated
+        if(!concept.hasConceptListItems()){
+            return concept.translateValue(value, outputType);
+        }
+        return TranslationCache.getTranslation(concept, outputType, value, () -> concept.translateValue(value, outputType));
+    }
+
     /**
      * translate the concept
      * @param outputType type of output format desired
@@ -95,19 +163,15 @@ class DecorCodebook {
      * @return  translated headerName
      */
     String translateConcept(OutputFormatType outputType, String headerName) {
-        Concept concept;
-        String translatedHeader = headerName;
-        try{
-            if(palgaColNameToConceptMap.containsKey(headerName)) {
-                concept = palgaColNameToConceptMap.get(headerName);
-                translatedHeader = concept.translateHeaderName(outputType);
-            }
-            else {
-                throw new Exception("Headername "+headerName + "doesn't exist. ");
-            }
-        } catch (Exception e){
-            String message = e.getMessage() + " Codebook version "+version+". Headername will not be translated.";
-            LogTracker.logMessage(this.getClass(), message);
+        Concept concept = palgaColNameToConceptMap.get(headerName);
+        if(concept==null) {
+            LogTracker.logMessage(this.getClass(), "Headername "+headerName + "doesn't exist.  Codebook version "+version+". Headername will not be translated.");
+            return headerName;
+        }
+        String translatedHeader = concept.translateHeaderName(outputType);
+        if(translatedHeader==null) {
+            LogTracker.logMessage(this.getClass(), "Headername "+headerName + " has no terminology. Codebook version "+version+". Headername will not be translated.");
+            return headerName;
         }
         return translatedHeader;
     }
@@ -119,30 +183,140 @@ class DecorCodebook {
      */
     boolean containsHeaderName(String headerName) {
         if(!palgaColNameToConceptMap.containsKey(headerName)) {
-            LogTracker.logMessage(this.getClass(), "The headername " + headerName + " does not exist in the codebook (version " + version + "). Concept and values for this concept will not be translated.");
+            logMissingHeaderName(headerName);
             return false;
         }
         return true;
     }
 
+    /**
+     * reports that a headerName doesn't exist in this codebook
+     * @param headerName the missing headerName
+     */
+    void logMissingHeaderName(String headerName) {
+        LogTracker.logMessage(this.getClass(), "The headername " + headerName + " does not exist in the codebook (version " + version + "). Concept and values for this concept will not be translated.");
+    }
+
+    /**
+     * returns the roman number a headername ends with, which is the longest roman number for which the headername
+     * without the roman number exists in this codebook
+     * @param headerName the headername
+     * @return the roman number in upper case, or "" if the headername doesn't end with a roman number
+     */
+    String resolveRoman(String headerName) {
+        String roman = romanMemo.get(headerName);
+        if(roman==null){
+            roman = findRoman(headerName);
+            romanMemo.put(headerName, roman);
+            romanMemoChanged = true;
+        }
+        return roman;
+    }
+
+    /**
+     * finds the roman number a headername ends with, see resolveRoman
+     * @param headerName the headername
+     * @return the roman number in upper case, or ""
+     */
+    private String findRoman(String headerName) {
+        String [] romans = new String[Romans.maxRomanMatches];
+        int nrRomans = Romans.romanNumberMatch(headerName, romans);
+        for(int i=0; i<nrRomans; i++){
+            if(palgaColNameToConceptMap.containsKey(headerName.substring(0, headerName.length()-romans[i].length()))){
+                return romans[i];
+            }
+        }
+        return "";
+    }
+
+    /**
+     * stores the resolved roman numbers in the codebook cache, if new headernames were resolved
+     */
+    void storeRomanMemo() {
+        if(romanMemoChanged){
+            romanMemoChanged = false;
+            CodebookCache.writeRomanMemo(romanMemo, datasetId, languageFrom, version);
+        }
+    }
+
+    /**
+     * returns the version of the codebook
+     * @return the version
+     */
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * returns the concept for a headerName
+     * @param headerName the headerName
+     * @return the concept or null if the headerName doesn't exist in this codebook
+     */
+    Concept getConcept(String headerName) {
+        return palgaColNameToConceptMap.get(headerName);
+    }
+
+    /**
+     * writes the contents of the codebook to a codebook cache snapshot
+     * @param dataOutputStream the snapshot
+     * @throws IOException when writing fails
+     */
+    void writeSnapshot(DataOutputStream dataOutputStream) throws IOException{
+        dataOutputStream.writeInt(palgaColNameToConceptMap.size());
+        for(Map.Entry<String, Concept> entry:palgaColNameToConceptMap.entrySet()){
+            CodebookCache.writeString(dataOutputStream, entry.getKey());
+            entry.getValue().writeSnapshot(dataOutputStream);
+        }
+    }
+
+    /**
+     * replaces the contents of the codebook with the contents of a codebook cache snapshot
+     * @param dataInputStream the snapshot
+     * @throws IOException when reading fails
+     */
+    void readSnapshot(DataInputStream dataInputStream) throws IOException{
+        palgaColNameToConceptMap.clear();
+        idToConceptMap.clear();
+        int nrConcepts = dataInputStream.readInt();
+        for(int i=0; i<nrConcepts; i++){
+            String palgaColName = CodebookCache.readString(dataInputStream);
+            Concept concept = Concept.readSnapshot(dataInputStream);
+            palgaColNameToConceptMap.put(palgaColName, concept);
+            idToConceptMap.put(concept.getConceptId(), concept);
+        }
+    }
+
     /**
      * attempts to create a codebook which is stored at a specific uri
      * @param uri contains the source of the codebook
+     * @return whether the codebook was created successfully
      */
-    private void createCodebook(String uri){
+    private boolean createCodebook(String uri){
         LogTracker.logMessage(this.getClass(), "Retrieving a codebook using "+uri);
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 
         try {
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document dom = db.parse(uri);
-            //get the root element
-            Element rootElement = dom.getDocumentElement();
-            createBook(rootElement);
+            if(GlobalSettings.getCodebookParserType()==CodebookParserType.STAX){
+                try(InputStream inputStream = new URL(uri).openStream()){
+                    new StaxCodebookParser(this).parse(inputStream);
+                }
+            }
+            else {
+                DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+                DocumentBuilder db = dbf.newDocumentBuilder();
+                Document dom = db.parse(uri);
+                //get the root element
+                Element rootElement = dom.getDocumentElement();
+                createBook(rootElement);
+            }
+            return true;
         } catch (Exception e){
+            // the parsers add the concepts while parsing, so remove the part of the codebook that was parsed
+            palgaColNameToConceptMap.clear();
+            idToConceptMap.clear();
             String message = "There was an issue retrieving data using the following uri: "+uri+"\nPerhaps it doesn't exist yet?";
             LogTracker.logMessage(this.getClass(), message);
         }
+        return false;
     }
 
     /**
@@ -176,8 +350,7 @@ class DecorCodebook {
             for(String aPalgaColName:splitPalgaColNames) {
                 aPalgaColName = aPalgaColName.trim();
                 Concept concept = createConcept(conceptElement, aPalgaColName);
-                palgaColNameToConceptMap.put(aPalgaColName, concept);
-                idToConceptMap.put(concept.getConceptId(), concept);
+                addConcept(aPalgaColName, concept);
                 addTerminology(conceptElement);
             }
         }
@@ -192,13 +365,34 @@ class DecorCodebook {
         List<Element> terminologyAssociationList = getChildElementsWithName(rootElement, "terminologyAssociation");
         for(Element terminologyAssociationElement:terminologyAssociationList){
             String conceptId = getAttributeValue(terminologyAssociationElement, "conceptId");
-            if(idToConceptMap.containsKey(conceptId)){
-                Concept concept = idToConceptMap.get(conceptId);
-                String conceptCode = terminologyAssociationElement.getAttribute("code");
-                String codeSystemName = terminologyAssociationElement.getAttribute("codeSystemName");
-                String displayName = terminologyAssociationElement.getAttribute("displayName");
-                concept.addConceptTerminology(conceptCode, codeSystemName, displayName);
-            }
+            String conceptCode = terminologyAssociationElement.getAttribute("code");
+            String codeSystemName = terminologyAssociationElement.getAttribute("codeSystemName");
+            String displayName = terminologyAssociationElement.getAttribute("displayName");
+            addTerminologyAssociation(conceptId, conceptCode, codeSystemName, displayName);
+        }
+    }
+
+    /**
+     * stores a newly created concept in the codebook
+     * @param palgaColName the name of the item in PALGA
+     * @param concept      the concept
+     */
+    void addConcept(String palgaColName, Concept concept){
+        palgaColNameToConceptMap.put(palgaColName, concept);
+        idToConceptMap.put(concept.getConceptId(), concept);
+    }
+
+    /**
+     * adds a terminology association to the concept it refers to, if we know this concept
+     * @param conceptId      identifier of the concept the association refers to
+     * @param conceptCode    code of the concept (e.g. some SNOMED code)
+     * @param codeSystemName codesystem the code belongs to (e.g. SNOMED)
+     * @param displayName    textual representation of the code
+     */
+    void addTerminologyAssociation(String conceptId, String conceptCode, String codeSystemName, String displayName){
+        if(idToConceptMap.containsKey(conceptId)){
+            Concept concept = idToConceptMap.get(conceptId);
+            concept.addConceptTerminology(conceptCode, codeSystemName, displayName);
         }
     }
 
@@ -226,9 +420,11 @@ class DecorCodebook {
         Element valueSetElement = getChildElementWithName(conceptElement, "valueSet");
         if(valueSetElement!=null) {
             Element conceptListElement = getChildElementWithName(valueSetElement, "conceptList");
-            // elements are in the concept tag, but may also be in the exception tag (NULLFlavors)
-            addValueSet(concept, getChildElementsWithName(conceptListElement, "concept"));
-            addValueSet(concept, getChildElementsWithName(conceptListElement, "exception"));
+            if(conceptListElement!=null) {
+                // elements are in the concept tag, but may also be in the exception tag (NULLFlavors)
+                addValueSet(concept, getChildElementsWithName(conceptListElement, "concept"));
+                addValueSet(concept, getChildElementsWithName(conceptListElement, "exception"));
+            }
         }
     }
 
@@ -32,8 +32,8 @@ import recoder.utils.enumerate.OutputFormatType;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static recoder.utils.enumerate.OutputFormatType.DESCRIPTIONS;
 
@@ -49,7 +49,7 @@ import static recoder.utils.enumerate.OutputFormatType.DESCRIPTIONS;
 public class HousekeepingCodebookManager {
     private static final Logger logger = LogManager.getLogger(HousekeepingCodebookManager.class.getName());
     // language to HousekeepingCodebook map
-    private static Map<String, HousekeepingCodebookManager> protocolCodebookManagerMap = new HashMap<>();
+    private static Map<String, HousekeepingCodebookManager> protocolCodebookManagerMap = new ConcurrentHashMap<>();
     private static final String protocolPrefix = "housekeeping";
 
     // I'm assuming the housekeeping stuff will always return a description. We could also change this to follow the way the procolmanager handles this
@@ -70,10 +70,7 @@ public class HousekeepingCodebookManager {
         // perhaps useful in the future
         String fromLanguage = runParameters.getFromLanguage();
         String key = protocolPrefix+fromLanguage;
-        if(!protocolCodebookManagerMap.containsKey(key)){
-            protocolCodebookManagerMap.put(key, new HousekeepingCodebookManager(fromLanguage));
-        }
-        return protocolCodebookManagerMap.get(key);
+        return protocolCodebookManagerMap.computeIfAbsent(key, k -> new HousekeepingCodebookManager(fromLanguage));
     }
 
     /**
@@ -112,6 +109,15 @@ public class HousekeepingCodebookManager {
         return  codebook.translateConceptValue(outputType, value, headerName);
     }
 
+    /**
+     * returns the translation of the values of a column; the housekeeping codebook is used for all versions
+     * @param headerName the headername of the column
+     * @return translation for the column
+     */
+    public ColumnTranslation getColumnTranslation(String headerName){
+        return new ColumnTranslation(headerName, outputType, new DecorCodebook[]{codebook}, true);
+    }
+
     /**
      * translate a concept
      * @param headerName the headername to translate
@@ -146,7 +152,7 @@ public class HousekeepingCodebookManager {
 
         try {
             DocumentBuilder db = dbf.newDocumentBuilder();
-            Document dom = db.parse(uri);
+            Document dom = db.parse(CodebookCache.getProjectIndex(protocolPrefix));
 
             //get the root element
             Element docEle = dom.getDocumentElement();
@@ -33,6 +33,7 @@ import recoder.utils.enumerate.OutputFormatType;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -44,10 +45,12 @@ import java.util.*;
  */
 public class ProtocolCodebookManager {
     private static final Logger logger = LogManager.getLogger(ProtocolCodebookManager.class.getName());
-    private static Map<String, ProtocolCodebookManager> protocolCodebookManagerMap = new HashMap<>();
-    private static Map<String, CodebookInfo> protocolInfoMap = new HashMap<>();
+    // the managers may be used by several translation threads at once
+    private static Map<String, ProtocolCodebookManager> protocolCodebookManagerMap = new ConcurrentHashMap<>();
+    private static Map<String, CodebookInfo> protocolInfoMap = new ConcurrentHashMap<>();
 
     // create a ordered map, which will allow us to easily find the newest codebook version
+    // only accessed in getCodebook, which is synchronized, so the codebooks are loaded only once
     private Map<String, NavigableMap<String, DecorCodebook>> codebookMap = new HashMap<>();
 
     // datasetId is the same for the multiple languages, so we do not need a language key here
@@ -74,10 +77,7 @@ public class ProtocolCodebookManager {
         String protocolPrefix = runParameters.getProtocolPrefix();
         String fromLanguage = runParameters.getFromLanguage();
         String key = protocolPrefix+fromLanguage;
-        if(!protocolCodebookManagerMap.containsKey(key)){
-            protocolCodebookManagerMap.put(key, new ProtocolCodebookManager(runParameters));
-        }
-        return protocolCodebookManagerMap.get(key);
+        return protocolCodebookManagerMap.computeIfAbsent(key, k -> new ProtocolCodebookManager(runParameters));
     }
 
     /**
@@ -114,6 +114,21 @@ public class ProtocolCodebookManager {
         return translatedValue;
     }
 
+    /**
+     * returns the translation of the values of a column, resolved for each of the versions in the data
+     * @param headerName headerName of the column
+     * @param versions   the versions found in the data; the version of a value is passed as its index in this list
+     * @param outputType the format type to use for the output
+     * @return translation for the column
+     */
+    public ColumnTranslation getColumnTranslation(String headerName, List<String> versions, OutputFormatType outputType){
+        DecorCodebook [] codebooks = new DecorCodebook[versions.size()];
+        for(int i=0; i<versions.size(); i++){
+            codebooks[i] = getCodebook(versions.get(i));
+        }
+        return new ColumnTranslation(headerName, outputType, codebooks, false);
+    }
+
     /**
      * translate a concept / headername
      * @param headerName the name to translate
@@ -144,12 +159,33 @@ public class ProtocolCodebookManager {
     }
 
 
+    /**
+     * returns the roman number a headername ends with, based on which headernames exist in a codebook version
+     * @param headerName the headername
+     * @param version    version of the codebook
+     * @return the roman number in upper case, or "" if the headername doesn't end with a roman number
+     */
+    public String resolveRoman(String headerName, String version){
+        DecorCodebook decorCodebook = getCodebook(version);
+        if(decorCodebook==null){
+            return "";
+        }
+        return decorCodebook.resolveRoman(headerName);
+    }
+
+    /**
+     * stores the roman numbers resolved using the codebooks in the codebook cache
+     */
+    public synchronized void storeRomanMemos(){
+        codebookMap.values().forEach(t -> t.values().forEach(DecorCodebook::storeRomanMemo));
+    }
+
     /**
      * returns codebook of the specified version
      * @param version version of the codebook
      * @return codebook
      */
-    private DecorCodebook getCodebook(String version){
+    private synchronized DecorCodebook getCodebook(String version){
         // otherwise, check whether we have the protocol available for this language
         if(!codebookMap.containsKey(fromLanguage)){
             codebookMap.put(fromLanguage, new TreeMap<>());
@@ -202,7 +238,7 @@ public class ProtocolCodebookManager {
         return protocolInfoMap.get(protocolPrefix).getUniqueLanguages();
     }
 
-    public static void createProtocolInfo(String protocolPrefix){
+    public static synchronized void createProtocolInfo(String protocolPrefix){
         if(!protocolInfoMap.containsKey(protocolPrefix)){
             setProtocolVersionToIdMap(protocolPrefix);
         }
@@ -222,7 +258,7 @@ public class ProtocolCodebookManager {
 
         try {
             DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            Document dom = documentBuilder.parse(uri);
+            Document dom = documentBuilder.parse(CodebookCache.getProjectIndex(protocolPrefix));
             //get the root element
             Element documentElement = dom.getDocumentElement();
 
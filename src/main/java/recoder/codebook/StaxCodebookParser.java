@@ -0,0 +1,289 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.codebook;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * event driven alternative for the DOM parsing in DecorCodebook
+ * The xml is handled in a single pass. Only the concepts we're currently in are kept in memory; a concept is added
+ * to the codebook when its end tag is reached. The rules are the same as for the DOM parsing:
+ *  - concepts are children of the root element or of a group concept
+ *  - a concept is added if its status code is draft or final and it has a PALGA_COLNAME property
+ *  - values are the concept and exception entries in the conceptList of the first valueSet of the concept
+ *  - the terminologyAssociations of the concept translate the concept itself
+ */
+class StaxCodebookParser {
+    private static final XMLInputFactory xmlInputFactory = createInputFactory();
+
+    /**
+     * the kinds of elements we're interested in
+     */
+    private enum ElementKind {ROOT, CONCEPT, PROPERTY, VALUE_SET, CONCEPT_LIST, VALUE_ENTRY, DESIGNATION, IGNORED}
+
+    private final DecorCodebook decorCodebook;
+
+    // the kinds of the elements we're currently in and the concepts we're currently in
+    private final Deque<ElementKind> elementStack = new ArrayDeque<>();
+    private final Deque<ConceptElement> conceptStack = new ArrayDeque<>();
+
+    // text of the property we're currently in
+    private final StringBuilder propertyText = new StringBuilder();
+    private boolean palgaColNameProperty;
+    private ValueEntry valueEntry;
+
+    /**
+     * new parser
+     * @param decorCodebook the codebook to which the concepts are added
+     */
+    StaxCodebookParser(DecorCodebook decorCodebook){
+        this.decorCodebook = decorCodebook;
+    }
+
+    /**
+     * create the factory; we're not namespace aware, as the DOM parsing isn't either
+     * @return the factory
+     */
+    private static XMLInputFactory createInputFactory(){
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * parse the codebook xml
+     * @param inputStream stream with the codebook xml
+     * @throws XMLStreamException when the xml cannot be parsed
+     */
+    void parse(InputStream inputStream) throws XMLStreamException {
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStream);
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        startElement(reader);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endElement();
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (elementStack.contains(ElementKind.PROPERTY)) {
+                            propertyText.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * determines what kind of element starts and stores what we need of it
+     * @param reader the reader, positioned at the start of an element
+     */
+    private void startElement(XMLStreamReader reader){
+        ElementKind parentKind = elementStack.peek();
+        String name = reader.getLocalName();
+        ElementKind kind = ElementKind.IGNORED;
+
+        if(parentKind==null){
+            kind = ElementKind.ROOT;
+        }
+        else if(parentKind==ElementKind.ROOT || (parentKind==ElementKind.CONCEPT && conceptStack.peek().isGroup())){
+            if(name.equals("concept")){
+                kind = ElementKind.CONCEPT;
+                conceptStack.push(new ConceptElement(getAttributeValue(reader, "id"), getAttributeValue(reader, "statusCode"), getAttributeValue(reader, "type")));
+            }
+        }
+
+        // the children of a concept in which we're interested
+        if(parentKind==ElementKind.CONCEPT && kind==ElementKind.IGNORED){
+            kind = startConceptChild(reader, name);
+        }
+        else if(parentKind==ElementKind.VALUE_SET && name.equals("conceptList") && !conceptStack.peek().hasConceptList){
+            conceptStack.peek().hasConceptList = true;
+            kind = ElementKind.CONCEPT_LIST;
+        }
+        else if(parentKind==ElementKind.CONCEPT_LIST && (name.equals("concept") || name.equals("exception"))){
+            kind = ElementKind.VALUE_ENTRY;
+            valueEntry = new ValueEntry(getAttributeValue(reader, "code"), getAttributeValue(reader, "codeSystemName"), getAttributeValue(reader, "displayName"));
+            conceptStack.peek().addValueEntry(valueEntry, name.equals("exception"));
+        }
+        else if(parentKind==ElementKind.VALUE_ENTRY && name.equals("designation")){
+            kind = ElementKind.DESIGNATION;
+            if(getAttributeValue(reader, "type").equalsIgnoreCase("preferred")){
+                valueEntry.textInLanguage = getAttributeValue(reader, "displayName");
+            }
+        }
+        elementStack.push(kind);
+    }
+
+    /**
+     * handles the start of a direct child of a concept
+     * @param reader the reader, positioned at the start of an element
+     * @param name   name of the element
+     * @return the kind of the element
+     */
+    private ElementKind startConceptChild(XMLStreamReader reader, String name){
+        ConceptElement conceptElement = conceptStack.peek();
+        switch (name){
+            case "property":
+                propertyText.setLength(0);
+                palgaColNameProperty = getAttributeValue(reader, "name").equalsIgnoreCase("PALGA_COLNAME");
+                return ElementKind.PROPERTY;
+            case "valueSet":
+                if(!conceptElement.hasValueSet) {
+                    conceptElement.hasValueSet = true;
+                    return ElementKind.VALUE_SET;
+                }
+                return ElementKind.IGNORED;
+            case "terminologyAssociation":
+                conceptElement.terminologyAssociations.add(new String[]{getAttributeValue(reader, "conceptId"),
+                        getAttributeValue(reader, "code"), getAttributeValue(reader, "codeSystemName"), getAttributeValue(reader, "displayName")});
+                return ElementKind.IGNORED;
+            default:
+                return ElementKind.IGNORED;
+        }
+    }
+
+    /**
+     * handles the end of an element; at the end of a concept the concept is added to the codebook
+     */
+    private void endElement(){
+        ElementKind kind = elementStack.pop();
+        if(kind==ElementKind.PROPERTY && palgaColNameProperty && conceptStack.peek().palgaColName==null){
+            conceptStack.peek().palgaColName = propertyText.toString().trim();
+        }
+        else if(kind==ElementKind.CONCEPT){
+            ConceptElement conceptElement = conceptStack.pop();
+            if(conceptElement.hasValidStatusCode()){
+                addConcept(conceptElement);
+            }
+        }
+    }
+
+    /**
+     * adds the concept to the codebook, once for each of its PALGA column names
+     * @param conceptElement the concept
+     */
+    private void addConcept(ConceptElement conceptElement){
+        if(conceptElement.palgaColName==null || conceptElement.palgaColName.equalsIgnoreCase("")){
+            return;
+        }
+        for(String aPalgaColName:conceptElement.palgaColName.split(";")){
+            aPalgaColName = aPalgaColName.trim();
+            Concept concept = new Concept(conceptElement.id, aPalgaColName);
+            for(ValueEntry entry:conceptElement.valueEntries){
+                concept.addConceptListItem(entry.valueCode, entry.valueCodeSystem, entry.valueDisplayName, entry.textInLanguage);
+            }
+            for(ValueEntry entry:conceptElement.exceptionEntries){
+                concept.addConceptListItem(entry.valueCode, entry.valueCodeSystem, entry.valueDisplayName, entry.textInLanguage);
+            }
+            decorCodebook.addConcept(aPalgaColName, concept);
+            for(String [] terminologyAssociation:conceptElement.terminologyAssociations){
+                decorCodebook.addTerminologyAssociation(terminologyAssociation[0], terminologyAssociation[1], terminologyAssociation[2], terminologyAssociation[3]);
+            }
+        }
+    }
+
+    /**
+     * returns the value of an attribute, or an empty string if it doesn't exist (just like the DOM does)
+     * @param reader        the reader, positioned at the start of an element
+     * @param attributeName name of the attribute
+     * @return the value of the attribute
+     */
+    private static String getAttributeValue(XMLStreamReader reader, String attributeName){
+        for(int i=0; i<reader.getAttributeCount(); i++){
+            if(reader.getAttributeLocalName(i).equals(attributeName)){
+                return reader.getAttributeValue(i);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * what we need to remember of a concept element until its end tag is reached
+     */
+    private static class ConceptElement {
+        private final String id;
+        private final String statusCode;
+        private final String type;
+        private String palgaColName;
+        private boolean hasValueSet = false;
+        private boolean hasConceptList = false;
+        private final List<ValueEntry> valueEntries = new ArrayList<>();
+        private final List<ValueEntry> exceptionEntries = new ArrayList<>();
+        private final List<String []> terminologyAssociations = new ArrayList<>();
+
+        private ConceptElement(String id, String statusCode, String type){
+            this.id = id;
+            this.statusCode = statusCode;
+            this.type = type;
+        }
+
+        private boolean isGroup(){
+            return type.equalsIgnoreCase("group");
+        }
+
+        private boolean hasValidStatusCode(){
+            return statusCode.equalsIgnoreCase("draft") || statusCode.equalsIgnoreCase("final");
+        }
+
+        private void addValueEntry(ValueEntry valueEntry, boolean exception){
+            if(exception){
+                exceptionEntries.add(valueEntry);
+            }
+            else {
+                valueEntries.add(valueEntry);
+            }
+        }
+    }
+
+    /**
+     * a single entry of a value set
+     */
+    private static class ValueEntry {
+        private final String valueCode;
+        private final String valueCodeSystem;
+        private final String valueDisplayName;
+        private String textInLanguage = "";
+
+        private ValueEntry(String valueCode, String valueCodeSystem, String valueDisplayName){
+            this.valueCode = valueCode;
+            this.valueCodeSystem = valueCodeSystem;
+            this.valueDisplayName = valueDisplayName;
+        }
+    }
+}
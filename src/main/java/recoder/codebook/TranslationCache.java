@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.codebook;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import recoder.settings.GlobalSettings;
+import recoder.utils.enumerate.OutputFormatType;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * bounded cache for translated values, shared by all codebooks and threads
+ * The same values of the same concept are translated over and over again, so the result of translating a value
+ * is remembered per concept (which belongs to a single codebook version), output format type and value. Values
+ * which cannot be translated are remembered as well, so they don't have to be looked up again.
+ *
+ * The cache holds at most the number of entries set in the GlobalSettings (0 disables it). It is split into
+ * segments, each with its own lock, so threads translating at the same time hardly wait for each other. When a
+ * segment is full, its least recently used entry is evicted.
+ */
+public class TranslationCache {
+    private static final Logger logger = LogManager.getLogger(TranslationCache.class.getName());
+    private static final int nrSegments = 16;
+    // stored for values that cannot be translated, as the segments cannot tell a stored null from a missing entry
+    private static final String noTranslation = new String();
+
+    private static volatile TranslationCache translationCache = new TranslationCache(GlobalSettings.getTranslationCacheSize());
+
+    private final int maxEntries;
+    private final Segment [] segments;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * new cache
+     * @param maxEntries maximum number of entries; 0 disables the cache
+     */
+    private TranslationCache(int maxEntries){
+        this.maxEntries = Math.max(0, maxEntries);
+        this.segments = new Segment[nrSegments];
+        // divide the entries over the segments, so together they hold at most maxEntries entries
+        for(int i=0; i<nrSegments; i++){
+            segments[i] = new Segment(this.maxEntries/nrSegments + (i<this.maxEntries%nrSegments ? 1 : 0));
+        }
+    }
+
+    /**
+     * replaces the cache with an empty cache, using the size currently set in the GlobalSettings
+     * called at the start of a translation run, so the statistics are those of the run
+     */
+    public static void clear(){
+        translationCache = new TranslationCache(GlobalSettings.getTranslationCacheSize());
+    }
+
+    /**
+     * logs the number of hits, misses and evictions of the cache
+     */
+    public static void logStatistics(){
+        TranslationCache cache = translationCache;
+        if(cache.maxEntries==0){
+            return;
+        }
+        long hits = cache.hits.get();
+        long misses = cache.misses.get();
+        long lookups = Math.max(1, hits+misses);
+        logger.log(Level.INFO, "Translation cache: {} hits, {} misses ({}% hits), {} evictions, {} of {} entries used", hits, misses,
+                String.format(Locale.ROOT, "%.1f", 100.0*hits/lookups), cache.evictions.get(), cache.size(), cache.maxEntries);
+    }
+
+    /**
+     * returns the translation of a value, from the cache if possible
+     * @param concept    the concept to which the value belongs
+     * @param outputType type of output format desired
+     * @param value      the value
+     * @param translator translates the value if it isn't in the cache; returns null if it cannot be translated
+     * @return the translation or null if the value cannot be translated
+     */
+    static String getTranslation(Concept concept, OutputFormatType outputType, String value, Supplier<String> translator){
+        TranslationCache cache = translationCache;
+        if(cache.maxEntries==0){
+            return translator.get();
+        }
+        Key key = new Key(concept, outputType, value);
+        Segment segment = cache.segments[(key.hashCode() & 0x7fffffff) % nrSegments];
+        String translation;
+        synchronized (segment){
+            translation = segment.get(key);
+        }
+        if(translation!=null){
+            cache.hits.incrementAndGet();
+            return translation==noTranslation ? null : translation;
+        }
+
+        // translate outside of the lock; if two threads miss at the same time, both translate the value
+        cache.misses.incrementAndGet();
+        translation = translator.get();
+        synchronized (segment){
+            segment.put(key, translation==null ? noTranslation : translation);
+        }
+        return translation;
+    }
+
+    /**
+     * returns the number of entries in the cache
+     * @return the number of entries
+     */
+    private int size(){
+        int size = 0;
+        for(Segment segment:segments){
+            synchronized (segment){
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * key of the cache; concepts and output format types are compared by identity
+     */
+    private static class Key {
+        private final Concept concept;
+        private final OutputFormatType outputType;
+        private final String value;
+        private final int hash;
+
+        private Key(Concept concept, OutputFormatType outputType, String value){
+            this.concept = concept;
+            this.outputType = outputType;
+            this.value = value;
+            this.hash = (System.identityHashCode(concept)*31+outputType.hashCode())*31+value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Key)){
+                return false;
+            }
+            Key key = (Key) o;
+            return concept==key.concept && outputType==key.outputType && value.equals(key.value);
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+    }
+
+    /**
+     * part of the cache, which evicts its least recently used entry when it is full
+     * access has to be synchronized on the segment
+     */
+    private class Segment extends LinkedHashMap<Key, String> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSegmentEntries;
+
+        private Segment(int maxSegmentEntries){
+            super(16, 0.75f, true);
+            this.maxSegmentEntries = maxSegmentEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, String> eldest){
+            if(size()>maxSegmentEntries){
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.codebook;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import recoder.utils.LogTracker;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * reports the values which could not be translated, once the translation is done
+ * Instead of reporting every value when it is found, the column translations collect and count them, and they are
+ * reported here per column and codebook version, with the number of times each value occurred. Columns which share
+ * a headername (e.g. the columns of a repeated concept, which only differ in their roman number) are reported
+ * together.
+ */
+public class TranslationDiagnostics {
+    private static final Logger logger = LogManager.getLogger(TranslationDiagnostics.class.getName());
+    // the number of values shown in the report of a column
+    private static final int maxReportedValues = 10;
+
+    /**
+     * reports the values which could not be translated
+     * @param columnTranslations the translations of the columns
+     */
+    public static void report(Collection<ColumnTranslation> columnTranslations){
+        // headername -> codebook version -> untranslated values, in the order of the columns
+        Map<String, Map<String, UntranslatedReport>> untranslatedMap = new LinkedHashMap<>();
+        for(ColumnTranslation columnTranslation:columnTranslations){
+            for(int i=0; i<columnTranslation.getNrVersionIndices(); i++){
+                ColumnTranslation.UntranslatedValues untranslatedValues = columnTranslation.getUntranslatedValues(i);
+                if(untranslatedValues.getCount()==0){
+                    continue;
+                }
+                String headerName = columnTranslation.getHeaderName();
+                String version = columnTranslation.getCodebookVersion(i);
+                untranslatedMap.computeIfAbsent(headerName, k -> new TreeMap<>()).computeIfAbsent(version, k -> new UntranslatedReport()).add(untranslatedValues);
+            }
+        }
+
+        if(untranslatedMap.isEmpty()){
+            logger.log(Level.INFO, "All values with a codebook entry were translated");
+            return;
+        }
+        int nrValues = 0;
+        long nrOccurrences = 0;
+        for(Map.Entry<String, Map<String, UntranslatedReport>> headerEntry:untranslatedMap.entrySet()){
+            for(Map.Entry<String, UntranslatedReport> versionEntry:headerEntry.getValue().entrySet()){
+                UntranslatedReport untranslatedReport = versionEntry.getValue();
+                nrValues += untranslatedReport.valueCounts.size();
+                nrOccurrences += untranslatedReport.count;
+                LogTracker.logMessage(DecorCodebook.class, createMessage(headerEntry.getKey(), versionEntry.getKey(), untranslatedReport));
+            }
+        }
+        logger.log(Level.INFO, "{} distinct values in {} columns could not be translated, {} times in total", nrValues, untranslatedMap.size(), nrOccurrences);
+    }
+
+    /**
+     * creates the message for the values of a column which could not be translated using a codebook version
+     * the values which occurred most often are shown first
+     * @param headerName         the headername of the column
+     * @param version            the codebook version
+     * @param untranslatedReport the values and their counts
+     * @return the message
+     */
+    private static String createMessage(String headerName, String version, UntranslatedReport untranslatedReport){
+        Map<String, Long> valueCounts = untranslatedReport.valueCounts;
+        String shownValues = valueCounts.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .limit(maxReportedValues)
+                .map(t -> "\""+t.getKey()+"\" ("+t.getValue()+"x)")
+                .collect(Collectors.joining(", "));
+        if(untranslatedReport.incomplete || valueCounts.size()>maxReportedValues){
+            shownValues += ", ...";
+        }
+        return (untranslatedReport.incomplete ? "More than " : "") + valueCounts.size() + " distinct value(s) of " + headerName + " don't seem to exist, " +
+                untranslatedReport.count + " time(s) in total. Codebook version " + version + ". Values will not be translated: " + shownValues;
+    }
+
+    /**
+     * the untranslated values of the columns with the same headername and codebook version
+     */
+    private static class UntranslatedReport {
+        private final Map<String, Long> valueCounts = new HashMap<>();
+        private long count = 0;
+        private boolean incomplete = false;
+
+        /**
+         * adds the untranslated values of a column
+         * @param untranslatedValues the values
+         */
+        private void add(ColumnTranslation.UntranslatedValues untranslatedValues){
+            untranslatedValues.getValueCounts().forEach((value, valueCount) -> valueCounts.merge(value, valueCount.sum(), Long::sum));
+            count += untranslatedValues.getCount();
+            incomplete |= untranslatedValues.isIncomplete();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.data.in;
+
+import recoder.codebook.ColumnTranslation;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * stores the data lines column by column, using a dictionary per column
+ * PALGA columns have few distinct values (coded answers, version numbers, empty values), so each distinct value of
+ * a column is stored once, together with a code for each line which refers to it. The codes are stored as bytes
+ * as long as a column has at most 256 distinct values, as shorts up to 65536 and as ints after that.
+ *
+ * To the rest of the dataset the store is a list of lines, of which each line is a read-only view on the store.
+ * Lines are only added while reading the data file; after that the store may be read by several threads at once.
+ * The translation of a value is remembered per column, protocol version and code, so each distinct value of a
+ * column is translated only once.
+ */
+class ColumnarDataStore extends AbstractList<List<String>> {
+    // remembered instead of the translation of a value which cannot be translated, so each occurrence is counted
+    private static final String untranslated = new String();
+
+    private final List<DictionaryColumn> columns = new ArrayList<>();
+    // the number of values of each line, as lines don't necessarily have the same number of values
+    private int [] lineLengths = new int[1024];
+    private int nrLines = 0;
+
+    // remembered translations per column; created when a column is translated for the first time
+    private AtomicReferenceArray<TranslationMemo> translationMemos;
+    private int nrVersions;
+
+    /**
+     * adds a line
+     * @param line the line
+     * @return true
+     */
+    @Override
+    public boolean add(List<String> line){
+        while(columns.size()<line.size()){
+            columns.add(new DictionaryColumn());
+        }
+        if(nrLines==lineLengths.length){
+            lineLengths = Arrays.copyOf(lineLengths, lineLengths.length*2);
+        }
+        for(int i=0; i<line.size(); i++){
+            columns.get(i).add(nrLines, line.get(i));
+        }
+        lineLengths[nrLines++] = line.size();
+        return true;
+    }
+
+    /**
+     * returns a view on a line
+     * @param index index of the line
+     * @return the line
+     */
+    @Override
+    public List<String> get(int index){
+        if(index<0 || index>=nrLines){
+            throw new IndexOutOfBoundsException("Line "+index+" doesn't exist");
+        }
+        return new Line(index);
+    }
+
+    /**
+     * returns the number of lines
+     * @return the number of lines
+     */
+    @Override
+    public int size(){
+        return nrLines;
+    }
+
+    /**
+     * called after the last line was added; releases what is only needed for adding lines and prepares
+     * remembering the translations
+     * @param nrVersions the number of protocol versions in the data
+     */
+    void finishLoading(int nrVersions){
+        this.nrVersions = nrVersions;
+        lineLengths = Arrays.copyOf(lineLengths, nrLines);
+        columns.forEach(DictionaryColumn::finishLoading);
+        translationMemos = new AtomicReferenceArray<>(columns.size());
+    }
+
+    /**
+     * returns the number of distinct values of a column
+     * @param column index of the column
+     * @return the number of distinct values
+     */
+    int getNrDistinctValues(int column){
+        return columns.get(column).values.size();
+    }
+
+    /**
+     * translates a value of a line, using the remembered translation if the value was translated before
+     * A column is expected to be translated using a single translation; if a different translation is used for
+     * the column, the value is translated without remembering it
+     * @param lineIndex         index of the line
+     * @param column            index of the column
+     * @param columnTranslation translation for the column
+     * @param versionIndex      index of the protocol version of the line
+     * @return the translated value
+     */
+    private String translate(int lineIndex, int column, ColumnTranslation columnTranslation, int versionIndex){
+        DictionaryColumn dictionaryColumn = columns.get(column);
+        int code = dictionaryColumn.getCode(lineIndex);
+        TranslationMemo translationMemo = getTranslationMemo(column, columnTranslation);
+        if(translationMemo==null){
+            return columnTranslation.translateValue(dictionaryColumn.values.get(code), versionIndex);
+        }
+
+        int memoIndex = translationMemo.versionIndependent ? code : versionIndex*dictionaryColumn.values.size()+code;
+        String translatedValue = translationMemo.translatedValues[memoIndex];
+        if(translatedValue==null){
+            // if two threads get here at the same time, both store the same translation
+            translatedValue = columnTranslation.lookupValue(dictionaryColumn.values.get(code), versionIndex);
+            if(translatedValue==null){
+                translatedValue = untranslated;
+            }
+            translationMemo.translatedValues[memoIndex] = translatedValue;
+        }
+        if(translatedValue==untranslated){
+            // the misses are counted per value in the line, not per distinct value
+            String value = dictionaryColumn.values.get(code);
+            columnTranslation.countUntranslated(value, versionIndex);
+            return value;
+        }
+        return translatedValue;
+    }
+
+    /**
+     * returns the remembered translations of a column
+     * Columns without values to translate, such as ids and free text, don't remember anything, as their values are
+     * returned as they are. A version independent column remembers a single translation per value.
+     * @param column            index of the column
+     * @param columnTranslation translation for the column
+     * @return the remembered translations or null if nothing is remembered for the translation
+     */
+    private TranslationMemo getTranslationMemo(int column, ColumnTranslation columnTranslation){
+        TranslationMemo translationMemo = translationMemos.get(column);
+        if(translationMemo==null){
+            translationMemos.compareAndSet(column, null, new TranslationMemo(columnTranslation, columns.get(column).values.size(), nrVersions));
+            translationMemo = translationMemos.get(column);
+        }
+        return translationMemo.columnTranslation==columnTranslation && translationMemo.translatedValues!=null ? translationMemo : null;
+    }
+
+    /**
+     * read-only view on a line of the store
+     */
+    class Line extends AbstractList<String> {
+        private final int lineIndex;
+
+        private Line(int lineIndex){
+            this.lineIndex = lineIndex;
+        }
+
+        @Override
+        public String get(int index){
+            if(index<0 || index>=size()){
+                throw new IndexOutOfBoundsException("Value "+index+" doesn't exist");
+            }
+            DictionaryColumn dictionaryColumn = columns.get(index);
+            return dictionaryColumn.values.get(dictionaryColumn.getCode(lineIndex));
+        }
+
+        @Override
+        public int size(){
+            return lineLengths[lineIndex];
+        }
+
+        /**
+         * translates a value of this line, see ColumnarDataStore.translate
+         * @param column            index of the column
+         * @param columnTranslation translation for the column
+         * @param versionIndex      index of the protocol version of the line
+         * @return the translated value
+         */
+        String translate(int column, ColumnTranslation columnTranslation, int versionIndex){
+            return ColumnarDataStore.this.translate(lineIndex, column, columnTranslation, versionIndex);
+        }
+    }
+
+    /**
+     * a column: its distinct values and, for each line, the code of its value
+     */
+    private static class DictionaryColumn {
+        private final ArrayList<String> values = new ArrayList<>();
+        private Map<String, Integer> valueToCode = new HashMap<>();
+        private byte [] byteCodes = new byte[1024];
+        private short [] shortCodes;
+        private int [] intCodes;
+        // the number of lines for which a code was stored
+        private int nrCodes = 0;
+
+        /**
+         * adds the value of a line; lines that are too short to have a value in this column are skipped
+         * @param lineIndex index of the line
+         * @param value     the value
+         */
+        private void add(int lineIndex, String value){
+            Integer code = valueToCode.get(value);
+            if(code==null){
+                code = values.size();
+                values.add(value);
+                valueToCode.put(value, code);
+                widenIfNecessary(values.size());
+            }
+            ensureCapacity(lineIndex+1);
+            nrCodes = lineIndex+1;
+            if(byteCodes!=null){
+                byteCodes[lineIndex] = (byte) (int) code;
+            }
+            else if(shortCodes!=null){
+                shortCodes[lineIndex] = (short) (int) code;
+            }
+            else{
+                intCodes[lineIndex] = code;
+            }
+        }
+
+        /**
+         * returns the code of the value of a line
+         * @param lineIndex index of the line
+         * @return the code
+         */
+        private int getCode(int lineIndex){
+            if(byteCodes!=null){
+                return byteCodes[lineIndex] & 0xff;
+            }
+            if(shortCodes!=null){
+                return shortCodes[lineIndex] & 0xffff;
+            }
+            return intCodes[lineIndex];
+        }
+
+        /**
+         * switches to a larger type of code when the number of distinct values no longer fits the current one
+         * @param nrValues the number of distinct values
+         */
+        private void widenIfNecessary(int nrValues){
+            if(byteCodes!=null && nrValues>256){
+                shortCodes = new short[byteCodes.length];
+                for(int i=0; i<byteCodes.length; i++){
+                    shortCodes[i] = (short) (byteCodes[i] & 0xff);
+                }
+                byteCodes = null;
+            }
+            else if(shortCodes!=null && nrValues>65536){
+                intCodes = new int[shortCodes.length];
+                for(int i=0; i<shortCodes.length; i++){
+                    intCodes[i] = shortCodes[i] & 0xffff;
+                }
+                shortCodes = null;
+            }
+        }
+
+        /**
+         * makes sure there is room for the codes of a number of lines
+         * @param nrLines the number of lines
+         */
+        private void ensureCapacity(int nrLines){
+            int capacity = byteCodes!=null ? byteCodes.length : shortCodes!=null ? shortCodes.length : intCodes.length;
+            if(nrLines>capacity){
+                resize(Math.max(nrLines, capacity*2));
+            }
+        }
+
+        /**
+         * resizes the codes
+         * @param capacity the new capacity
+         */
+        private void resize(int capacity){
+            if(byteCodes!=null){
+                byteCodes = Arrays.copyOf(byteCodes, capacity);
+            }
+            else if(shortCodes!=null){
+                shortCodes = Arrays.copyOf(shortCodes, capacity);
+            }
+            else{
+                intCodes = Arrays.copyOf(intCodes, capacity);
+            }
+        }
+
+        /**
+         * releases the dictionary lookup, which is only used to add lines, and the unused room for codes
+         */
+        private void finishLoading(){
+            valueToCode = null;
+            values.trimToSize();
+            resize(nrCodes);
+        }
+    }
+
+    /**
+     * the translations of the values of a column, by protocol version and code, or only by code if the column is
+     * version independent
+     */
+    private static class TranslationMemo {
+        private final ColumnTranslation columnTranslation;
+        private final boolean versionIndependent;
+        // null if the column has no values to translate
+        private final String [] translatedValues;
+
+        private TranslationMemo(ColumnTranslation columnTranslation, int nrValues, int nrVersions){
+            this.columnTranslation = columnTranslation;
+            this.versionIndependent = columnTranslation.isVersionIndependent();
+            if(!columnTranslation.hasValueList()){
+                this.translatedValues = null;
+            }
+            else {
+                this.translatedValues = new String[versionIndependent ? nrValues : nrVersions*nrValues];
+            }
+        }
+    }
+}
@@ -19,17 +19,27 @@
 
 package recoder.data.in;
 
+import recoder.codebook.ColumnTranslation;
 import recoder.codebook.HousekeepingCodebookManager;
 import recoder.codebook.ProtocolCodebookManager;
+import recoder.codebook.TranslationCache;
+import recoder.codebook.TranslationDiagnostics;
 import recoder.data.out.OutputData;
 import recoder.data.out.OutputDataNormal;
 import recoder.data.out.OutputDataWide;
 import recoder.settings.RunParameters;
-import recoder.utils.Romans;
 import recoder.utils.enumerate.OutputFormatType;
 
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 /**
  * shared class for InputData types
@@ -42,14 +52,19 @@ import java.util.stream.Collectors;
  * Hence, we keep lists with the original header names, the header names without the roman numbers and a list with just the roman numbers
  */
 abstract class DefaultDataset implements InputData {
+    private static final Logger logger = LogManager.getLogger(DefaultDataset.class.getName());
     private static final String protocolVersionColName = "depvenr";
+    // number of lines that are translated together; the translated lines of a batch are handed to the output in order
+    private static final int translationBatchSize = 10000;
 
     private int protocolVersionIndex;
 
-    // the data lines
-    List<List<String>> lines = new ArrayList<>();
+    // the data lines, stored per column; remains empty in streaming mode
+    ColumnarDataStore lines = new ColumnarDataStore();
     // the original header
     List<String> origHeaderList = new ArrayList<>();
+    // the positions of the columns of the original header
+    HeaderIndex headerIndex = new HeaderIndex(origHeaderList);
     // the header, without roman numbers
     List<String> noRomanHeaderList = new ArrayList<>();
     // the roman numbers
@@ -59,7 +74,23 @@ abstract class DefaultDataset implements InputData {
     // this is necessary as the data could contain a column which no longer exists in the newest version
     // of the protocol used in the data file. In that case translating it using the newest version present
     // would result in an error
-    String [] maxVersionForConcept;
+    // the versions are compared as numbers; besides the number, the index of the version in protocolVersions is
+    // stored, so the version can be returned as it appears in the data. Both are -1 if the column has no data
+    private int [] maxVersionForConcept;
+    private int [] maxVersionIndexForConcept;
+
+    // the protocol versions found in the data; a line refers to its version using the index in this list
+    List<String> protocolVersions = new ArrayList<>();
+    private Map<String, Integer> protocolVersionIndexMap = new HashMap<>();
+    // the protocol versions as numbers, by index in protocolVersions; null until the number is needed
+    private List<Integer> protocolVersionNumbers = new ArrayList<>();
+
+    // the translation plan: for each column the translation of its values, resolved once in translateHeader
+    // null for columns whose values aren't translated directly
+    ColumnTranslation [] columnTranslations;
+
+    // lines may be prepared by several translation threads, each of which gets its own tokenizer
+    private final ThreadLocal<LineTokenizer> lineTokenizer = ThreadLocal.withInitial(LineTokenizer::new);
 
     OutputData outputData;
     OutputFormatType outputFormatType;
@@ -74,15 +105,85 @@ abstract class DefaultDataset implements InputData {
         this.outputFormatType = runParameters.getOutputFormatType();
     }
 
+    /**
+     * reads the data file. In streaming mode this is the first pass over the file, which only collects the
+     * information we need for the header (the max versions of the concepts); the data lines themselves are
+     * read again in translateValues
+     */
+    void readDataFile(){
+        String line;
+        if(runParameters.useStreamingMode()){
+            logger.log(Level.INFO, "Streaming mode: scanning the data file...");
+        }
+        if(useMappedReader()){
+            readDataFileMapped();
+        }
+        else {
+            // create buffered reader
+            try (BufferedReader br = createReader()) {
+                // read the first line of the recoder.data, which contains the header, and add it to our input recoder.data
+                addHeader(br.readLine());
+                // add other lines
+                while ((line = br.readLine()) != null) {
+                    addData(line);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("A fatal exception occurred whilst reading the dataset: " + e.getMessage());
+            }
+        }
+        lines.finishLoading(protocolVersions.size());
+        logger.log(Level.INFO, "{} of {} columns contain data, {} protocol version(s) found", headerIndex.getNrColumnsWithData(), origHeaderList.size(), protocolVersions.size());
+    }
+
+    /**
+     * reads the data file using the memory mapped reader, which prepares the lines using the translation threads
+     */
+    private void readDataFileMapped(){
+        int nrThreads = runParameters.getTranslationThreads();
+        ForkJoinPool readerPool = nrThreads>1 ? new ForkJoinPool(nrThreads) : null;
+        try {
+            MappedDataFileReader mappedDataFileReader = new MappedDataFileReader(new File(runParameters.getInputFileName()), readerPool);
+            addHeader(mappedDataFileReader.readHeader());
+            mappedDataFileReader.readDataLines(this::prepareLine, this::addPreparedData);
+        } catch(IOException e){
+            throw new RuntimeException("A fatal exception occurred whilst reading the dataset: "+e.getMessage());
+        } finally {
+            if(readerPool!=null) {
+                readerPool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * returns whether the data file is large enough to read it using the memory mapped reader
+     * @return true/false
+     */
+    private boolean useMappedReader(){
+        long thresholdMB = runParameters.getMappedReaderThresholdMB();
+        return thresholdMB>=0 && new File(runParameters.getInputFileName()).length()>thresholdMB*1024*1024;
+    }
+
+    /**
+     * opens the data file
+     * @return a reader for the data file
+     * @throws IOException when the file cannot be opened
+     */
+    private BufferedReader createReader() throws IOException{
+        return new BufferedReader(new InputStreamReader(new FileInputStream(new File(runParameters.getInputFileName())), "ISO-8859-1"));
+    }
+
     /**
      * handle the header of the data file
      * @param line the header line, tab separated
      */
     void addHeader(String line){
         origHeaderList = Arrays.asList(line.split("\t"));
-        protocolVersionIndex = origHeaderList.indexOf(protocolVersionColName);
-        maxVersionForConcept = new String[origHeaderList.size()];
-        Arrays.fill(maxVersionForConcept, "-1");
+        headerIndex = new HeaderIndex(origHeaderList);
+        protocolVersionIndex = headerIndex.indexOf(protocolVersionColName);
+        maxVersionForConcept = new int[origHeaderList.size()];
+        Arrays.fill(maxVersionForConcept, -1);
+        maxVersionIndexForConcept = new int[origHeaderList.size()];
+        Arrays.fill(maxVersionIndexForConcept, -1);
     }
 
     /**
@@ -90,41 +191,196 @@ abstract class DefaultDataset implements InputData {
      * @param line the line with data, tab separated
      */
     void addData(String line){
-        List<String> newLine = prepareLine(line);
-        checkMaxVersionConcept(newLine);
-        lines.add(newLine);
+        addPreparedData(prepareLine(line));
+    }
+
+    /**
+     * add a line which contains data and which was already prepared
+     * @param newLine list representation of the line
+     */
+    private void addPreparedData(List<String> newLine){
+        checkLine(newLine);
+        if(!runParameters.useStreamingMode()) {
+            lines.add(newLine);
+        }
     }
 
     /**
      * prepare the line, changing it to a list and cleaning it
+     * the values are trimmed and the quotes that excel sometimes adds are removed
      * @param line    the line to prepare
      * @return list representation of the line
      */
     private List<String> prepareLine(String line){
-        String [] splitLine = line.split("\t", -1);
-        return Arrays.stream(splitLine).map(this::cleanValue).collect(Collectors.toList());
+        return lineTokenizer.get().tokenize(line);
     }
 
     /**
-     * trim the value and remove quotes that excel sometimes adds
-     * @param value    value to clean
-     * @return cleaned value
+     * translate data; creates outputdata and translates the header and values
      */
-    private String cleanValue(String value){
-        value = value.trim();
-        if(value.startsWith("\"") && value.endsWith("\"")){
-            value = value.substring(1, value.length()-1);
+    public final void translate(){
+        TranslationCache.clear();
+        outputData = createOutputData();
+        translateHeader();
+        outputData.startDataLines();
+        try {
+            translateValues();
+        } catch (RuntimeException e){
+            // don't leave the output file open when the translation fails
+            outputData.close();
+            throw e;
         }
-        return value;
+        TranslationCache.logStatistics();
+        TranslationDiagnostics.report(getColumnTranslations());
     }
 
     /**
-     * translate data; creates outputdata and translates the header and values
+     * returns the translations of all columns whose values are translated
+     * @return list with the column translations
      */
-    public final void translate(){
-        outputData = createOutputData();
-        translateHeader();
-        translateValues();
+    List<ColumnTranslation> getColumnTranslations(){
+        List<ColumnTranslation> columnTranslationList = new ArrayList<>();
+        if(columnTranslations!=null) {
+            Arrays.stream(columnTranslations).filter(Objects::nonNull).forEach(columnTranslationList::add);
+        }
+        return columnTranslationList;
+    }
+
+    /**
+     * translate the values; in streaming mode the data file is read a second time and the lines are translated
+     * and handed to the output in batches as they are read
+     * If more than one translation thread is requested, the lines of a batch are translated in parallel
+     */
+    private void translateValues(){
+        if(runParameters.usePipelinedMode()){
+            translateValuesPipelined();
+            return;
+        }
+        int nrThreads = runParameters.getTranslationThreads();
+        ForkJoinPool translationPool = nrThreads>1 ? new ForkJoinPool(nrThreads) : null;
+        if(translationPool!=null) {
+            logger.log(Level.INFO, "Translating the data lines using {} threads", nrThreads);
+        }
+        try {
+            if (!runParameters.useStreamingMode()) {
+                for (int start = 0; start < lines.size(); start += translationBatchSize) {
+                    translateBatch(lines.subList(start, Math.min(start + translationBatchSize, lines.size())), Function.identity(), translationPool);
+                }
+                return;
+            }
+
+            logger.log(Level.INFO, "Streaming mode: translating the data file...");
+            if(useMappedReader()){
+                translateValuesMapped(translationPool);
+                return;
+            }
+
+            String line;
+            List<String> batch = new ArrayList<>();
+            try (BufferedReader br = createReader()) {
+                // skip the header, which we already have
+                br.readLine();
+                while ((line = br.readLine()) != null) {
+                    batch.add(line);
+                    if (batch.size() == translationBatchSize) {
+                        translateBatch(batch, this::prepareLine, translationPool);
+                        batch.clear();
+                    }
+                }
+                translateBatch(batch, this::prepareLine, translationPool);
+            } catch (IOException e) {
+                throw new RuntimeException("A fatal exception occurred whilst reading the dataset: " + e.getMessage());
+            }
+        } finally {
+            if(translationPool!=null) {
+                translationPool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * reads the data file a second time using the memory mapped reader and translates the lines in batches
+     * @param translationPool pool used to translate the lines in parallel; null to translate them sequentially
+     */
+    private void translateValuesMapped(ForkJoinPool translationPool){
+        List<List<String>> batch = new ArrayList<>();
+        try {
+            new MappedDataFileReader(new File(runParameters.getInputFileName()), translationPool).readDataLines(this::prepareLine, line -> {
+                batch.add(line);
+                if (batch.size() == translationBatchSize) {
+                    translateBatch(batch, Function.identity(), translationPool);
+                    batch.clear();
+                }
+            });
+            translateBatch(batch, Function.identity(), translationPool);
+        } catch (IOException e) {
+            throw new RuntimeException("A fatal exception occurred whilst reading the dataset: " + e.getMessage());
+        }
+    }
+
+    /**
+     * translate the values using a pipeline, in which reading, translating and writing run at the same time
+     * in streaming mode the reader stage reads the data file a second time
+     */
+    private void translateValuesPipelined(){
+        logger.log(Level.INFO, "Pipelined mode: translating the data lines...");
+        if(!runParameters.useStreamingMode()){
+            new TranslationPipeline<List<String>>(Function.identity(), this::translateLine, outputData::addDataLine, runParameters.getTranslationThreads()).run(lines.iterator());
+            return;
+        }
+
+        try (BufferedReader br = createReader()) {
+            // skip the header, which we already have
+            br.readLine();
+            new TranslationPipeline<String>(this::prepareLine, this::translateLine, outputData::addDataLine, runParameters.getTranslationThreads()).run(br.lines().iterator());
+        } catch (IOException|UncheckedIOException e) {
+            throw new RuntimeException("A fatal exception occurred whilst reading the dataset: " + e.getMessage());
+        }
+    }
+
+    /**
+     * translates a batch of lines and adds the translated lines to the output, in the order of the batch
+     * @param batch           the lines to translate
+     * @param prepare         turns an element of the batch into a data line
+     * @param translationPool pool used to translate the lines in parallel; null to translate them sequentially
+     * @param <T>             type of the elements of the batch
+     */
+    private <T> void translateBatch(List<T> batch, Function<T, List<String>> prepare, ForkJoinPool translationPool){
+        if(translationPool==null){
+            batch.forEach(t->outputData.addDataLine(translateLine(prepare.apply(t))));
+            return;
+        }
+
+        List<List<String>> translatedLines = new ArrayList<>(Collections.nCopies(batch.size(), null));
+        try {
+            translationPool.submit(() -> IntStream.range(0, batch.size()).parallel().forEach(i -> translatedLines.set(i, translateLine(prepare.apply(batch.get(i)))))).get();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("The translation of the data lines was interrupted");
+        } catch (ExecutionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("A fatal exception occurred whilst translating the dataset: "+e.getCause().getMessage());
+        }
+        for(List<String> translatedLine:translatedLines){
+            outputData.addDataLine(translatedLine);
+        }
+    }
+
+    /**
+     * translate a value of a line; for lines in the store, each distinct value of a column is translated only once
+     * @param columnTranslation translation for the column
+     * @param line              the line
+     * @param column            index of the column
+     * @param versionIndex      index of the protocol version of the line
+     * @return the translated value
+     */
+    String translateValue(ColumnTranslation columnTranslation, List<String> line, int column, int versionIndex){
+        if(line instanceof ColumnarDataStore.Line){
+            return ((ColumnarDataStore.Line) line).translate(column, columnTranslation, versionIndex);
+        }
+        return columnTranslation.translateValue(line.get(column), versionIndex);
     }
 
     /**
@@ -136,6 +392,15 @@ abstract class DefaultDataset implements InputData {
         return line.get(protocolVersionIndex);
     }
 
+    /**
+     * return the index of the protocol version of a data line in the protocolVersions list
+     * @param line data line
+     * @return index of the version
+     */
+    int getProtocolVersionIndexForLine(List<String> line){
+        return protocolVersionIndexMap.get(line.get(protocolVersionIndex));
+    }
+
     /**
      * identify roman numbers in the header
      */
@@ -143,6 +408,7 @@ abstract class DefaultDataset implements InputData {
         ProtocolCodebookManager protocolCodebookManager = ProtocolCodebookManager.getProtocolManager(runParameters);
         HousekeepingCodebookManager housekeepingCodebookManager = HousekeepingCodebookManager.getProtocolManager(runParameters);
         origHeaderList.stream().forEach(t->setRomans(housekeepingCodebookManager, protocolCodebookManager, t));
+        protocolCodebookManager.storeRomanMemos();
     }
 
     /**
@@ -152,28 +418,20 @@ abstract class DefaultDataset implements InputData {
      */
     private void setRomans(HousekeepingCodebookManager housekeepingCodebookManager, ProtocolCodebookManager protocolCodebookManager, String origName) {
         String noRomanName;
-        String maxProtocolVersionForConcept = maxVersionForConcept[origHeaderList.indexOf(origName)];
+        String maxProtocolVersionForConcept = getMaxVersionForConcept(headerIndex.indexOf(origName));
 
         // check whether the column actually has data in it. If not, there's no need to search
         // for romans, as it won't be written anyway (and it would also be problematic as we wouldn't know
         // which version of the codebook to use for the translation of the header)
         if(addDataToOutput(origName) && !housekeepingCodebookManager.containsHeaderName(origName)){
-            // retrieve a list of the romans which were possibly used in this headername
-            List<String> romanList = Romans.romanNumberMatch(origName);
-
-            if (romanList.size() > 0) {
-                // loop over the romanList
-                for (String aRomanNumber : romanList) {
-                    // remove the roman number from the name
-                    noRomanName = origName.substring(0, origName.length() - aRomanNumber.length());
-                    // check whether this noRomanName exists in the codebook, as in that case we have a valid name
-                    if (protocolCodebookManager.containsHeaderName(noRomanName, maxProtocolVersionForConcept)) {
-                        // if it does, add both the noRomanName and the romannumber to our list
-                        noRomanHeaderList.add(noRomanName.toLowerCase());
-                        romansInHeader.add(aRomanNumber);
-                        return;
-                    }
-                }
+            // find the longest roman number for which the name without it exists in the codebook
+            String aRomanNumber = protocolCodebookManager.resolveRoman(origName, maxProtocolVersionForConcept);
+            if (!aRomanNumber.isEmpty()) {
+                // remove the roman number from the name, and add both the noRomanName and the romannumber to our list
+                noRomanName = origName.substring(0, origName.length() - aRomanNumber.length());
+                noRomanHeaderList.add(noRomanName.toLowerCase());
+                romansInHeader.add(aRomanNumber);
+                return;
             }
         }
 
@@ -182,6 +440,14 @@ abstract class DefaultDataset implements InputData {
         romansInHeader.add("");
     }
 
+    /**
+     * collects what we need to know about a data line while the data file is read
+     * @param line list representation of the line
+     */
+    void checkLine(List<String> line){
+        checkMaxVersionConcept(line);
+    }
+
     /**
      * for each concept in the line that has a value, checks whether the max stored version is smaller than the
      * current version and if so, stores this line's version as the max for the concept
@@ -193,22 +459,52 @@ abstract class DefaultDataset implements InputData {
      */
     private void checkMaxVersionConcept(List<String> line){
         String version = line.get(protocolVersionIndex);
+        Integer versionIndex = protocolVersionIndexMap.get(version);
+        if(versionIndex==null){
+            versionIndex = protocolVersions.size();
+            protocolVersionIndexMap.put(version, versionIndex);
+            protocolVersions.add(version);
+            protocolVersionNumbers.add(null);
+        }
+        // the version is only parsed once a value is found, as a line without values may lack a valid version
+        int versionNumber = -1;
+        boolean versionParsed = false;
         for(int i=0; i<line.size(); i++){
-            if(!line.get(i).equalsIgnoreCase("")){
-                if(Integer.parseInt(maxVersionForConcept[i])<Integer.parseInt(version)){
-                    maxVersionForConcept[i] = version;
+            if(!line.get(i).isEmpty()){
+                if(!versionParsed){
+                    versionNumber = getProtocolVersionNumber(versionIndex);
+                    versionParsed = true;
+                }
+                if(maxVersionForConcept[i]<versionNumber){
+                    maxVersionForConcept[i] = versionNumber;
+                    maxVersionIndexForConcept[i] = versionIndex;
+                    headerIndex.setHasData(i);
                 }
             }
         }
     }
 
+    /**
+     * returns the number of a protocol version, which is parsed only the first time it is needed
+     * @param versionIndex index of the version in protocolVersions
+     * @return the version number
+     */
+    private int getProtocolVersionNumber(int versionIndex){
+        Integer versionNumber = protocolVersionNumbers.get(versionIndex);
+        if(versionNumber==null){
+            versionNumber = Integer.parseInt(protocolVersions.get(versionIndex));
+            protocolVersionNumbers.set(versionIndex, versionNumber);
+        }
+        return versionNumber;
+    }
+
     /**
      * returns whether the concept is eligible for output. If the concept has a version number of -1, it is not.
      * @param headerName    the concept to check
      * @return true/false
      */
     public boolean addDataToOutput(String headerName){
-        return !maxVersionForConcept[origHeaderList.indexOf(headerName)].equalsIgnoreCase("-1");
+        return headerIndex.hasData(headerIndex.indexOf(headerName));
     }
 
     /**
@@ -236,20 +532,34 @@ abstract class DefaultDataset implements InputData {
     }
 
     public String getMaxVersionForConcept(String origColName){
-        int index = origHeaderList.indexOf(origColName);
-        return maxVersionForConcept[index];
+        return getMaxVersionForConcept(headerIndex.indexOf(origColName));
+    }
+
+    /**
+     * returns the maximum protocol version used for a column, as it appears in the data
+     * @param column index of the column
+     * @return the version or -1 if the column has no data
+     */
+    String getMaxVersionForConcept(int column){
+        int versionIndex = maxVersionIndexForConcept[column];
+        return versionIndex<0 ? "-1" : protocolVersions.get(versionIndex);
     }
 
     private OutputData createOutputData(){
         if(runParameters.exportAsWideFormat()){
-            final String tmIdLower = runParameters.getTransmartPatientId().toLowerCase();
-            int idIndex = origHeaderList.stream().map(String::toLowerCase).collect(Collectors.toList()).indexOf(tmIdLower);
+            int idIndex = headerIndex.indexOfIgnoreCase(runParameters.getTransmartPatientId());
             return new OutputDataWide(runParameters, idIndex);
         }
         return new OutputDataNormal(runParameters);
     }
 
     abstract void translateHeader();
-    abstract void translateValues();
+
+    /**
+     * translate a single line; may be called from several threads at once, so it shouldn't change the dataset
+     * @param line the line to translate
+     * @return the translated line
+     */
+    abstract List<String> translateLine(List<String> line);
 
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.data.in;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * index of the columns of the header, so the position of a column can be found without searching the header
+ * PALGA exports can have thousands of columns, so searching the header list for every column makes handling the
+ * header quadratic in the number of columns.
+ * If a name occurs more than once, the first position is used, just like List.indexOf does. Besides the positions,
+ * the index keeps a bitmap of the columns that have data, which is filled while the data lines are parsed.
+ */
+class HeaderIndex {
+    private final Map<String, Integer> positionMap = new HashMap<>();
+    private final Map<String, Integer> lowerCasePositionMap = new HashMap<>();
+    // whether a column has at least one value
+    private final BitSet hasData = new BitSet();
+
+    /**
+     * new index
+     * @param headerNames the names of the columns
+     */
+    HeaderIndex(List<String> headerNames){
+        for(int i=0; i<headerNames.size(); i++){
+            positionMap.putIfAbsent(headerNames.get(i), i);
+            lowerCasePositionMap.putIfAbsent(headerNames.get(i).toLowerCase(Locale.ROOT), i);
+        }
+    }
+
+    /**
+     * returns the position of a column
+     * @param headerName the name of the column, case sensitive
+     * @return the position or -1 if the column doesn't exist
+     */
+    int indexOf(String headerName){
+        Integer position = positionMap.get(headerName);
+        return position==null ? -1 : position;
+    }
+
+    /**
+     * returns the position of a column, ignoring case
+     * @param headerName the name of the column
+     * @return the position or -1 if the column doesn't exist
+     */
+    int indexOfIgnoreCase(String headerName){
+        Integer position = lowerCasePositionMap.get(headerName.toLowerCase(Locale.ROOT));
+        return position==null ? -1 : position;
+    }
+
+    /**
+     * returns whether a column has at least one value
+     * @param index position of the column
+     * @return true/false
+     */
+    boolean hasData(int index){
+        return hasData.get(index);
+    }
+
+    /**
+     * marks that a column has at least one value
+     * @param index position of the column
+     */
+    void setHasData(int index){
+        hasData.set(index);
+    }
+
+    /**
+     * returns the number of columns that have at least one value
+     * @return the number of columns
+     */
+    int getNrColumnsWithData(){
+        return hasData.cardinality();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.data.in;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * splits a tab separated data line into cleaned values in a single pass over the line
+ * The result is the same as splitting on tabs (keeping empty values at the end), trimming each value and removing
+ * the quotes that excel sometimes adds around a value. Instead of creating a string for each of these steps, the
+ * tokenizer finds the bounds of the cleaned value and creates a single string for it.
+ *
+ * The fields are collected in an array which is reused for the next line, so a tokenizer should not be shared
+ * between threads.
+ */
+class LineTokenizer {
+    private String [] fields = new String[64];
+    private int nrFields = 0;
+
+    /**
+     * splits the line into cleaned values
+     * @param line the line, tab separated
+     * @return list with the cleaned values
+     */
+    List<String> tokenize(String line){
+        nrFields = 0;
+        int length = line.length();
+        int fieldStart = 0;
+        for(int i=0; i<=length; i++){
+            if(i==length || line.charAt(i)=='\t'){
+                addField(line, fieldStart, i);
+                fieldStart = i+1;
+            }
+        }
+        return Arrays.asList(Arrays.copyOf(fields, nrFields));
+    }
+
+    /**
+     * adds the cleaned value found between start and end
+     * @param line  the line
+     * @param start start of the value in the line
+     * @param end   end of the value in the line (exclusive)
+     */
+    private void addField(String line, int start, int end){
+        // trim, using the same definition of whitespace as String.trim
+        while(start<end && line.charAt(start)<=' '){
+            start++;
+        }
+        while(end>start && line.charAt(end-1)<=' '){
+            end--;
+        }
+        // remove the quotes that excel sometimes adds
+        if(end-start>=2 && line.charAt(start)=='"' && line.charAt(end-1)=='"'){
+            start++;
+            end--;
+        }
+
+        if(nrFields==fields.length){
+            fields = Arrays.copyOf(fields, fields.length*2);
+        }
+        fields[nrFields++] = line.substring(start, end);
+    }
+}
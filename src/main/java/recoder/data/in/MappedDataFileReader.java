@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.data.in;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * reads a data file by memory mapping it, as an alternative for a BufferedReader for large files
+ * PALGA exports are ISO-8859-1, so each byte is a character and the file can be split into chunks at newlines
+ * without decoding it first. The chunks are mapped and their lines are prepared by the threads of a pool; the
+ * prepared lines are handed over in the order of the file.
+ * Lines end the same way as for BufferedReader.readLine: at \n, \r or \r\n.
+ */
+class MappedDataFileReader {
+    private static final Logger logger = LogManager.getLogger(MappedDataFileReader.class.getName());
+    private static final int chunkSize = 8*1024*1024;
+    private static final int blockSize = 64*1024;
+
+    private final File file;
+    private final ForkJoinPool pool;
+    private final int parallelism;
+
+    /**
+     * new reader
+     * @param file the data file
+     * @param pool pool used to prepare the lines of several chunks at once; null to prepare them one chunk at a time
+     */
+    MappedDataFileReader(File file, ForkJoinPool pool){
+        this.file = file;
+        this.pool = pool;
+        this.parallelism = pool==null ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * reads the header, which is the first line of the file
+     * @return the header line or null if the file is empty
+     * @throws IOException when the file cannot be read
+     */
+    String readHeader() throws IOException{
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            long headerEnd = findLineEnd(channel, 0);
+            if(headerEnd==0){
+                return null;
+            }
+            ByteBuffer byteBuffer = ByteBuffer.allocate((int) headerEnd);
+            readFully(channel, byteBuffer, 0);
+            List<String> lines = new ArrayList<>();
+            splitLines(byteBuffer, false, lines::add);
+            return lines.get(0);
+        }
+    }
+
+    /**
+     * reads the lines after the header; the lines are prepared in parallel and handed to the consumer in order
+     * @param prepare  turns a line into a data line; called from several threads at once
+     * @param consumer receives the prepared data lines
+     * @throws IOException when the file cannot be read
+     */
+    void readDataLines(Function<String, List<String>> prepare, Consumer<List<String>> consumer) throws IOException{
+        // only the time spent reading and preparing is measured, not the time the consumer needs
+        long readTime = 0;
+        long size;
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            size = channel.size();
+            long start = System.nanoTime();
+            List<long []> chunks = findChunks(channel);
+            readTime += System.nanoTime()-start;
+            // process the chunks in waves, so only a few chunks are in memory at the same time
+            for(int i=0; i<chunks.size(); i+=parallelism){
+                start = System.nanoTime();
+                List<List<List<String>>> preparedChunks = readChunks(channel, chunks.subList(i, Math.min(i+parallelism, chunks.size())), prepare);
+                readTime += System.nanoTime()-start;
+                preparedChunks.forEach(preparedChunk -> preparedChunk.forEach(consumer));
+            }
+        } catch (UncheckedIOException e){
+            throw e.getCause();
+        }
+        long time = Math.max(1, readTime/1000000);
+        logger.log(Level.INFO, "Memory mapped reader: read and split {} MB in {} ms ({} MB/s, {} threads)", String.format(Locale.ROOT, "%.1f", size/1048576.0), time,
+                String.format(Locale.ROOT, "%.1f", size/1048576.0/(time/1000.0)), parallelism);
+    }
+
+    /**
+     * splits the data part of the file into chunks of about chunkSize bytes, each ending directly after a line
+     * terminator (or at the end of the file), so a line and a \r\n are never split over two chunks
+     * @param channel channel of the file
+     * @return list with the start and end position of each chunk
+     * @throws IOException when the file cannot be read
+     */
+    private List<long []> findChunks(FileChannel channel) throws IOException{
+        List<long []> chunks = new ArrayList<>();
+        long size = channel.size();
+        long chunkStart = findLineEnd(channel, 0);
+        while(chunkStart<size){
+            long chunkEnd = chunkStart+chunkSize;
+            chunkEnd = chunkEnd>=size ? size : findLineEnd(channel, chunkEnd);
+            chunks.add(new long[]{chunkStart, chunkEnd});
+            chunkStart = chunkEnd;
+        }
+        return chunks;
+    }
+
+    /**
+     * returns the position directly after the first line terminator (\n, \r or \r\n) at or after a position
+     * @param channel  channel of the file
+     * @param position position from which to search
+     * @return the position after the line terminator or the size of the file if there is none
+     * @throws IOException when the file cannot be read
+     */
+    private static long findLineEnd(FileChannel channel, long position) throws IOException{
+        ByteBuffer byteBuffer = ByteBuffer.allocate(64*1024);
+        boolean carriageReturn = false;
+        while(true){
+            byteBuffer.clear();
+            int read = channel.read(byteBuffer, position);
+            if(read<=0){
+                return position;
+            }
+            for(int i=0; i<read; i++){
+                byte b = byteBuffer.get(i);
+                if(carriageReturn){
+                    // a \r ends the line; if it's followed by a \n, the \n is part of the line terminator
+                    return b=='\n' ? position+i+1 : position+i;
+                }
+                if(b=='\n'){
+                    return position+i+1;
+                }
+                carriageReturn = b=='\r';
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * maps chunks of the file and prepares their lines, using the pool if there is one
+     * @param channel channel of the file
+     * @param chunks  start and end position of the chunks
+     * @param prepare turns a line into a data line
+     * @return the prepared lines of each chunk, in the order of the chunks
+     * @throws IOException when the file cannot be read
+     */
+    private List<List<List<String>>> readChunks(FileChannel channel, List<long []> chunks, Function<String, List<String>> prepare) throws IOException{
+        if(pool==null){
+            return chunks.stream().map(chunk -> readChunk(channel, chunk, prepare)).collect(Collectors.toList());
+        }
+        try {
+            return pool.submit(() -> chunks.parallelStream().map(chunk -> readChunk(channel, chunk, prepare)).collect(Collectors.toList())).get();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Reading the data file was interrupted");
+        } catch (ExecutionException e){
+            if(e.getCause() instanceof UncheckedIOException){
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * maps a chunk of the file and prepares its lines
+     * @param channel channel of the file
+     * @param chunk   start and end position of the chunk
+     * @param prepare turns a line into a data line
+     * @return the prepared lines of the chunk
+     */
+    private static List<List<String>> readChunk(FileChannel channel, long [] chunk, Function<String, List<String>> prepare){
+        try {
+            // the chunks never split a \r\n, but if a chunk starts with the \n of one, it isn't an empty line
+            boolean afterCarriageReturn = chunk[0]>0 && readByte(channel, chunk[0]-1)=='\r';
+            MappedByteBuffer mappedByteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1]-chunk[0]);
+            List<List<String>> preparedLines = new ArrayList<>();
+            splitLines(mappedByteBuffer, afterCarriageReturn, line -> preparedLines.add(prepare.apply(line)));
+            return preparedLines;
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * splits the bytes of a buffer into lines, the same way BufferedReader.readLine does
+     * The bytes are copied out of the buffer in blocks; a line which doesn't end in its block is collected in a small
+     * array, which is reused for the next line.
+     * @param byteBuffer          the bytes, ISO-8859-1, from the position up to the limit of the buffer
+     * @param afterCarriageReturn whether the byte before the buffer is a \r, in which case a \n at the start
+     *                            of the buffer ends that line instead of an empty line
+     * @param consumer            receives the lines
+     */
+    private static void splitLines(ByteBuffer byteBuffer, boolean afterCarriageReturn, Consumer<String> consumer){
+        byte [] block = new byte[Math.min(blockSize, byteBuffer.remaining())];
+        byte [] lineBytes = new byte[1024];
+        int lineLength = 0;
+        boolean carriageReturn = afterCarriageReturn;
+        while(byteBuffer.hasRemaining()){
+            int blockLength = Math.min(block.length, byteBuffer.remaining());
+            byteBuffer.get(block, 0, blockLength);
+            int lineStart = 0;
+            for(int i=0; i<blockLength; i++){
+                byte b = block[i];
+                if(b=='\n' && carriageReturn){
+                    // the \n of a \r\n, of which the \r already ended the line
+                    carriageReturn = false;
+                    lineStart = i+1;
+                    continue;
+                }
+                carriageReturn = b=='\r';
+                if(b=='\n' || b=='\r'){
+                    if(lineLength==0){
+                        consumer.accept(new String(block, lineStart, i-lineStart, StandardCharsets.ISO_8859_1));
+                    }
+                    else {
+                        lineBytes = append(lineBytes, lineLength, block, lineStart, i);
+                        consumer.accept(new String(lineBytes, 0, lineLength+i-lineStart, StandardCharsets.ISO_8859_1));
+                        lineLength = 0;
+                    }
+                    lineStart = i+1;
+                }
+            }
+            // the rest of the block belongs to a line which continues in the next block
+            lineBytes = append(lineBytes, lineLength, block, lineStart, blockLength);
+            lineLength += blockLength-lineStart;
+        }
+        if(lineLength>0){
+            consumer.accept(new String(lineBytes, 0, lineLength, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * appends bytes of a block to the bytes of a line
+     * @param lineBytes  the bytes of the line
+     * @param lineLength the number of bytes of the line so far
+     * @param block      the block
+     * @param start      position in the block of the first byte to append
+     * @param end        position in the block after the last byte to append
+     * @return the array with the bytes of the line, which is larger if the bytes didn't fit
+     */
+    private static byte [] append(byte [] lineBytes, int lineLength, byte [] block, int start, int end){
+        int length = lineLength+end-start;
+        if(length>lineBytes.length){
+            lineBytes = Arrays.copyOf(lineBytes, Math.max(length, lineBytes.length*2));
+        }
+        System.arraycopy(block, start, lineBytes, lineLength, end-start);
+        return lineBytes;
+    }
+
+    /**
+     * reads a single byte of the file
+     * @param channel  channel of the file
+     * @param position position of the byte
+     * @return the byte
+     * @throws IOException when the file cannot be read
+     */
+    private static byte readByte(FileChannel channel, long position) throws IOException{
+        ByteBuffer byteBuffer = ByteBuffer.allocate(1);
+        readFully(channel, byteBuffer, position);
+        return byteBuffer.hasRemaining() ? byteBuffer.get(0) : 0;
+    }
+
+    /**
+     * reads bytes from a position until the buffer is full
+     * @param channel    channel of the file
+     * @param byteBuffer the buffer to fill
+     * @param position   position to start reading
+     * @throws IOException when the file cannot be read
+     */
+    private static void readFully(FileChannel channel, ByteBuffer byteBuffer, long position) throws IOException{
+        while(byteBuffer.hasRemaining()){
+            int read = channel.read(byteBuffer, position);
+            if(read<0){
+                break;
+            }
+            position += read;
+        }
+        byteBuffer.flip();
+    }
+}
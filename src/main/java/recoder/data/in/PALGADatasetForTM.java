@@ -19,25 +19,37 @@
 
 package recoder.data.in;
 
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import recoder.codebook.ColumnTranslation;
 import recoder.codebook.HousekeepingCodebookManager;
 import recoder.codebook.ProtocolCodebookManager;
 import recoder.data.out.OutputDataWide;
 import recoder.settings.RunParameters;
 import recoder.transmart.TransmartManager;
 
-import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 /**
  * Used when data has to be prepared for a transmart import
  */
 class PALGADatasetForTM extends DefaultDataset{
-//    private static final Logger logger = LogManager.getLogger(PALGADatasetForTM.class.getName());
+    private static final Logger logger = LogManager.getLogger(PALGADatasetForTM.class.getName());
 
     private TransmartManager transmartManager;
 
+    // for each column which is the first of a set of columns with the same path, the columns that are merged into it
+    private MergedColumn [] mergedColumns;
+
+    // checks whether the lines of each patient are next to each other, so the wide format can be written patient
+    // by patient; null if this isn't needed
+    private PatientOrderCheck patientOrderCheck;
+
     private PALGADatasetForTM(RunParameters runParameters) {
         super(runParameters);
     }
@@ -48,33 +60,42 @@ class PALGADatasetForTM extends DefaultDataset{
      * @return  a new Object which contains the datafile and can be used to prepare the output for transmart
      */
     static PALGADatasetForTM createDataset(RunParameters runParameters){
-        String line;
         PALGADatasetForTM palgaDataset = new PALGADatasetForTM(runParameters);
+        palgaDataset.readDataFile();
+        palgaDataset.postReadOperations();
+        return palgaDataset;
+    }
 
-        // create buffered reader
-        try(BufferedReader br = new BufferedReader(
-                new InputStreamReader(new FileInputStream(new File(runParameters.getInputFileName())), "ISO-8859-1"))) {
-            // read the first line of the recoder.data, which contains the header, and add it to our input recoder.data
-            palgaDataset.addHeader(br.readLine());
+    /**
+     * handle the header of the data file, checking whether it contains the patient id column
+     * @param line the header line, tab separated
+     */
+    @Override
+    void addHeader(String line){
+        super.addHeader(line);
+        checkPatientIdColumn();
+        if(runParameters.exportAsWideFormat() && runParameters.useGroupedWideInput()){
+            patientOrderCheck = new PatientOrderCheck(headerIndex.indexOfIgnoreCase(runParameters.getTransmartPatientId()));
+        }
+    }
 
-            palgaDataset.checkPatientIdColumn();
-            // add other lines
-            while((line=br.readLine())!=null){
-                palgaDataset.addData(line);
-            }
-            palgaDataset.postReadOperations();
-        } catch(IOException e){
-            throw new RuntimeException("A fatal exception occurred whilst reading the dataset: "+e.getMessage());
+    /**
+     * collects what we need to know about a data line, including the order of the patients for the wide format
+     * @param line list representation of the line
+     */
+    @Override
+    void checkLine(List<String> line){
+        super.checkLine(line);
+        if(patientOrderCheck!=null){
+            patientOrderCheck.addLine(line);
         }
-        return palgaDataset;
     }
 
     /**
      * validates whether the patient id column exists
      */
     private void checkPatientIdColumn(){
-        String tmIdLower = runParameters.getTransmartPatientId().toLowerCase();
-        if(origHeaderList.stream().map(t->t.toLowerCase()).noneMatch(t->t.equalsIgnoreCase(tmIdLower))){
+        if(headerIndex.indexOfIgnoreCase(runParameters.getTransmartPatientId())<0){
             throw new RuntimeException("The specified patient identier column '"+ runParameters.getTransmartPatientId()+"' was not found in the data. Please fix");
         }
     }
@@ -83,6 +104,9 @@ class PALGADatasetForTM extends DefaultDataset{
      * stuff to do after reading the datafile
      */
     private void postReadOperations(){
+        if(patientOrderCheck!=null){
+            patientOrderCheck.finish();
+        }
         checkRomans();
         transmartManager = new TransmartManager(runParameters, this);
     }
@@ -93,6 +117,8 @@ class PALGADatasetForTM extends DefaultDataset{
     void translateHeader() {
         HousekeepingCodebookManager housekeepingCodebookManager = HousekeepingCodebookManager.getProtocolManager(runParameters);
         ProtocolCodebookManager protocolCodebookManager = ProtocolCodebookManager.getProtocolManager(runParameters);
+        columnTranslations = new ColumnTranslation[noRomanHeaderList.size()];
+        mergedColumns = new MergedColumn[noRomanHeaderList.size()];
 
         // for each entry in the header
         for(int i=0; i<noRomanHeaderList.size(); i++){
@@ -102,11 +128,12 @@ class PALGADatasetForTM extends DefaultDataset{
             if(addDataToOutput(origHeaderName)){
                 // if so, retrieve the max used protocol version for the concept as well as the name without the roman
                 String noRomanHeaderName = noRomanHeaderList.get(i);
-                String protocolVersion = maxVersionForConcept[i];
+                String protocolVersion = getMaxVersionForConcept(i);
 
                 // first check whether the header is a PALGA housekeeping column, for which there is a separate codebook
                 if (housekeepingCodebookManager.containsHeaderName(noRomanHeaderName)) {
                     outputData.addHeaderValue(origHeaderList.get(i), housekeepingCodebookManager.translateConcept(noRomanHeaderName), true);
+                    columnTranslations[i] = housekeepingCodebookManager.getColumnTranslation(noRomanHeaderName);
                 }
                 else {
                     // find all items which have the same path as our current item
@@ -121,7 +148,7 @@ class PALGADatasetForTM extends DefaultDataset{
                         //  * use the index to get the no roman version of the name
                         //  * use this name to translate the concept
                         //  * and if there are >1 items, join the translated concepts together with underscores
-                        String output = multiMappedItems.stream().map(t -> protocolCodebookManager.translateConcept(noRomanHeaderList.get(origHeaderList.indexOf(t)), protocolVersion, outputFormatType)).collect(Collectors.joining("_"));
+                        String output = multiMappedItems.stream().map(t -> protocolCodebookManager.translateConcept(noRomanHeaderList.get(headerIndex.indexOf(t)), protocolVersion, outputFormatType)).collect(Collectors.joining("_"));
 
                         // maybe this should be part of the previous step? after the first add another map which checks for the romans?
                         if (!romansInHeader.get(i).equalsIgnoreCase("")) {
@@ -129,88 +156,79 @@ class PALGADatasetForTM extends DefaultDataset{
                         }
                         // add the new header to the outputdata
                         outputData.addHeaderValue(origHeaderList.get(i), output, false);
+                        mergedColumns[i] = new MergedColumn(multiMappedItems, protocolCodebookManager);
                     }
                 }
             }
         }
+
+        if(patientOrderCheck!=null){
+            setGroupedWideInput();
+        }
     }
 
     /**
-     * translate the data values
+     * lets the wide format write the patients one by one if the lines of each patient are next to each other
      */
-    void translateValues(){
-        lines.forEach(this::translateLine);
+    private void setGroupedWideInput(){
+        if(!patientOrderCheck.isGrouped()){
+            logger.log(Level.INFO, "Wide format: the lines of the patients are not next to each other, so all the lines are kept until the output is written");
+            return;
+        }
+        // the wide format takes the id from the translated line, at the position the id column has in the data file
+        // this only refers to the id column if every column before it is part of the output
+        int idIndex = headerIndex.indexOfIgnoreCase(runParameters.getTransmartPatientId());
+        for(int i=0; i<=idIndex; i++){
+            if(columnTranslations[i]==null && mergedColumns[i]==null){
+                logger.log(Level.INFO, "Wide format: the position of the patient id column differs in the output, so all the lines are kept until the output is written");
+                return;
+            }
+        }
+        logger.log(Level.INFO, "Wide format: the lines are grouped by patient ({} patients, at most {} lines each), so the patients are written one by one if they don't fit in memory",
+                patientOrderCheck.getNrPatients(), patientOrderCheck.getMaxRepeat());
+        ((OutputDataWide) outputData).useGroupedInput();
     }
 
     /**
-     * translate a single line
+     * translate a single line, using the translation plan created in translateHeader
      * @param line  the line to translate
+     * @return the translated line
      */
-    private void translateLine(List<String> line){
-        HousekeepingCodebookManager housekeepingCodebookManager = HousekeepingCodebookManager.getProtocolManager(runParameters);
-        ProtocolCodebookManager protocolCodebookManager = ProtocolCodebookManager.getProtocolManager(runParameters);
+    @Override
+    List<String> translateLine(List<String> line){
         List<String> translatedLine = new ArrayList<>();
 
+        // get the protocol version for this line
+        int versionIndex = getProtocolVersionIndexForLine(line);
+
         // for each value in the line
         for(int i=0; i<line.size(); i++){
-            // retrieve the original header name
-            String origHeaderName = origHeaderList.get(i);
-            // check whether the column should be added to the output
-            if(addDataToOutput(origHeaderName)){
-                String noRomanHeaderName = noRomanHeaderList.get(i);
-                // check whether the concept is a housekeeping concept
-                if (housekeepingCodebookManager.containsHeaderName(noRomanHeaderName)) {
-                    String value = line.get(i);
-                    translatedLine.add(housekeepingCodebookManager.translateValue(noRomanHeaderName, value));
-                }
-                else {
-                    // otherwise
-                    addDataValue(line, translatedLine, protocolCodebookManager, origHeaderName);
-                }
+            // housekeeping concepts are translated directly
+            if(columnTranslations[i]!=null){
+                translatedLine.add(translateValue(columnTranslations[i], line, i, versionIndex));
+            }
+            // other concepts are added if the column is the first of the columns which are merged into one column
+            // if there is only one column with the path, it is "merged" on its own
+            else if(mergedColumns[i]!=null){
+                translatedLine.add(mergeDataValues(mergedColumns[i], line, versionIndex));
             }
         }
-        outputData.addDataLine(translatedLine);
-    }
-
-    /**
-     * continues the work of translated line
-     * @param line                      the line to translate
-     * @param translatedLine            list where the translated values are stored
-     * @param protocolCodebookManager   protocol manager
-     * @param origHeaderName            original header name
-     */
-    private void addDataValue(List<String> line, List<String> translatedLine, ProtocolCodebookManager protocolCodebookManager, String origHeaderName){
-        // retrieve the max used protocol version for the concept
-        String version = getProtocolVersionForLine(line);
-
-        // find all items which have the same path as our current item
-        // if there is only one item with the path, the multiMappedItems list will contain only one item
-        List<String> multiMappedItems = transmartManager.getMultiMappedItems(origHeaderName);
-
-        // if our current item is the first item in the list, merge all items in the list to one column
-        if (multiMappedItems != null && multiMappedItems.indexOf(origHeaderName) == 0) {
-            String newValue = mergeDataValues(multiMappedItems, line, protocolCodebookManager, version);
-            translatedLine.add(newValue);
-        }
+        return translatedLine;
     }
 
-
     /**
      * merges items into one column
-     * @param multiMappedItems           items which map have the same path
-     * @param line                       data line
-     * @param protocolCodebookManager    manager for the current protocol
-     * @param version                    max version used for the concept
+     * @param mergedColumn  the columns which map to the same path
+     * @param line          data line
+     * @param versionIndex  index of the protocol version of the line
      * @return merged value of the column values
      */
-    private String mergeDataValues(List<String> multiMappedItems, List<String> line, ProtocolCodebookManager protocolCodebookManager, String version){
+    private String mergeDataValues(MergedColumn mergedColumn, List<String> line, int versionIndex){
         String newValue="";
         // for each column which should be mapped to a single column
-        for (String headerValue : multiMappedItems) {
-            // fetch the current column name and its index
-            int index = origHeaderList.indexOf(headerValue);
+        for (int i=0; i<mergedColumn.indices.length; i++) {
             // use the codebook to translate the value
-            String curValue = protocolCodebookManager.translateValue(noRomanHeaderList.get(index), line.get(index), version, outputFormatType).trim();
+            String curValue = translateValue(mergedColumn.translations[i], line, mergedColumn.indices[i], versionIndex).trim();
             // merge the values
             if (!curValue.equalsIgnoreCase("other") && !curValue.equalsIgnoreCase("")) {
                 newValue += curValue + "&";
@@ -236,4 +254,40 @@ class PALGADatasetForTM extends DefaultDataset{
         transmartManager.createTransmartFile(outputData);
     }
 
+    /**
+     * returns the translations of all columns whose values are translated, including the merged columns
+     * @return list with the column translations
+     */
+    @Override
+    List<ColumnTranslation> getColumnTranslations(){
+        List<ColumnTranslation> columnTranslationList = super.getColumnTranslations();
+        if(mergedColumns!=null) {
+            Arrays.stream(mergedColumns).filter(Objects::nonNull).forEach(t -> columnTranslationList.addAll(Arrays.asList(t.translations)));
+        }
+        return columnTranslationList;
+    }
+
+    /**
+     * the columns which are merged into a single column, with the translation of each of them
+     */
+    private class MergedColumn {
+        private final int [] indices;
+        private final ColumnTranslation [] translations;
+
+        /**
+         * resolves the columns which are merged
+         * @param multiMappedItems          original names of the columns which map to the same path
+         * @param protocolCodebookManager   manager for the current protocol
+         */
+        private MergedColumn(List<String> multiMappedItems, ProtocolCodebookManager protocolCodebookManager){
+            indices = new int[multiMappedItems.size()];
+            translations = new ColumnTranslation[multiMappedItems.size()];
+            for(int i=0; i<multiMappedItems.size(); i++){
+                // the multimapped items are based on the original column names, the codebooks on the non-roman names
+                indices[i] = headerIndex.indexOf(multiMappedItems.get(i));
+                translations[i] = protocolCodebookManager.getColumnTranslation(noRomanHeaderList.get(indices[i]), protocolVersions, outputFormatType);
+            }
+        }
+    }
+
 }
@@ -19,11 +19,11 @@
 
 package recoder.data.in;
 
+import recoder.codebook.ColumnTranslation;
 import recoder.codebook.HousekeepingCodebookManager;
 import recoder.codebook.ProtocolCodebookManager;
 import recoder.settings.RunParameters;
 
-import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -43,21 +43,8 @@ class PALGADatasetText extends DefaultDataset{
      */
     static PALGADatasetText createDataset(RunParameters runParameters){
         PALGADatasetText palgaDatasetText = new PALGADatasetText(runParameters);
-        String line;
-
-        // create buffered reader
-        try(BufferedReader br = new BufferedReader(
-                new InputStreamReader(new FileInputStream(new File(runParameters.getInputFileName())), "ISO-8859-1"))) {
-            // read the first line of the recoder.data, which contains the header, and add it to our input recoder.data
-            palgaDatasetText.addHeader(br.readLine());
-            // add other lines
-            while((line=br.readLine())!=null){
-                palgaDatasetText.addData(line);
-            }
-            palgaDatasetText.checkRomans();
-        } catch(IOException e){
-            throw new RuntimeException("A fatal exception occurred whilst reading the dataset: "+e.getMessage());
-        }
+        palgaDatasetText.readDataFile();
+        palgaDatasetText.checkRomans();
         return palgaDatasetText;
     }
 
@@ -68,6 +55,7 @@ class PALGADatasetText extends DefaultDataset{
     void translateHeader(){
         HousekeepingCodebookManager housekeepingCodebookManager = HousekeepingCodebookManager.getProtocolManager(runParameters);
         ProtocolCodebookManager protocolCodebookManager = ProtocolCodebookManager.getProtocolManager(runParameters);
+        columnTranslations = new ColumnTranslation[noRomanHeaderList.size()];
 
         // for all elements in the norRomanHeaderList
         for(int i=0; i<noRomanHeaderList.size(); i++){
@@ -78,7 +66,7 @@ class PALGADatasetText extends DefaultDataset{
 
                 // retrieve the header name without roman, as well as the maximum codebook version used for the concept
                 String headerName = noRomanHeaderList.get(i);
-                String protocolVersion = maxVersionForConcept[i];
+                String protocolVersion = getMaxVersionForConcept(i);
                 String translatedHeader;
 
                 // translate the header via the housekeepingcodebook or via the protocolcodebook
@@ -86,6 +74,7 @@ class PALGADatasetText extends DefaultDataset{
                     translatedHeader = housekeepingCodebookManager.translateConcept(headerName);
                     // store the translated header
                     outputData.addHeaderValue(origHeaderList.get(i), translatedHeader, true);
+                    columnTranslations[i] = housekeepingCodebookManager.getColumnTranslation(headerName);
                 }
                 else {
                     translatedHeader = protocolCodebookManager.translateConcept(headerName, protocolVersion, outputFormatType);
@@ -94,54 +83,33 @@ class PALGADatasetText extends DefaultDataset{
                         translatedHeader += "_" + romansInHeader.get(i);
                     }
                     outputData.addHeaderValue(origHeaderList.get(i), translatedHeader, false);
+                    columnTranslations[i] = protocolCodebookManager.getColumnTranslation(headerName, protocolVersions, outputFormatType);
                 }
             }
         }
     }
 
     /**
-     * translate the values
-     */
-    @Override
-    void translateValues(){
-        lines.forEach(this::translateLine);
-    }
-
-    /**
-     * translate a single line
+     * translate a single line, using the translation plan created in translateHeader
      * @param line    line to translate
+     * @return the translated line
      */
-    private void translateLine(List<String> line){
-        HousekeepingCodebookManager housekeepingCodebookManager = HousekeepingCodebookManager.getProtocolManager(runParameters);
-        ProtocolCodebookManager protocolCodebookManager = ProtocolCodebookManager.getProtocolManager(runParameters);
+    @Override
+    List<String> translateLine(List<String> line){
         List<String> translatedLine = new ArrayList<>();
 
         // get the protocol version for this line
-        String version = getProtocolVersionForLine(line);
+        int versionIndex = getProtocolVersionIndexForLine(line);
 
-        // for each item in the line
+        // for each item in the line which should be added to the output, add the translated value
         for(int i=0; i<line.size(); i++){
-            // retrieve the original header name and check whether the concept should be added to the output
-            String origHeaderName = origHeaderList.get(i);
-            if(addDataToOutput(origHeaderName)){
-                // retrieve the no roman header name and the value that has to be translated
-                String headerName = noRomanHeaderList.get(i);
-                String value = line.get(i);
-                String translatedValue;
-
-                // translate value using the housekeeping codebook or the protocol codebook
-                if (housekeepingCodebookManager.containsHeaderName(headerName)) {
-                    translatedValue = housekeepingCodebookManager.translateValue(headerName, value);
-                }
-                else {
-                    translatedValue = protocolCodebookManager.translateValue(headerName, value, version, outputFormatType);
-                }
-                // add the translated value to the translated line
-                translatedLine.add(translatedValue);
+            ColumnTranslation columnTranslation = columnTranslations[i];
+            if(columnTranslation!=null){
+                translatedLine.add(translateValue(columnTranslation, line, i, versionIndex));
             }
         }
         // store the translated line in the output
-        outputData.addDataLine(translatedLine);
+        return translatedLine;
     }
 
     /**
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.data.in;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * checks, while the data file is read, whether the lines of each patient are next to each other
+ * PALGA deliveries are usually ordered by patient, in which case the wide format can be written patient by patient
+ * instead of keeping all the lines until the output is written. The order doesn't matter, as long as a patient
+ * doesn't appear again once the lines of another patient have started.
+ */
+class PatientOrderCheck {
+    private final int idIndex;
+    // the patients seen so far; released as soon as the lines turn out not to be grouped
+    private Set<String> seenIds = new HashSet<>();
+    private String previousId;
+    private boolean grouped = true;
+    private int nrPatients = 0;
+    private int maxRepeat = 0;
+    private int currentRepeat = 0;
+
+    /**
+     * new check
+     * @param idIndex index of the patient id column
+     */
+    PatientOrderCheck(int idIndex){
+        this.idIndex = idIndex;
+    }
+
+    /**
+     * checks the next line of the data file
+     * @param line the line
+     */
+    void addLine(List<String> line){
+        if(!grouped){
+            return;
+        }
+        String id = line.get(idIndex);
+        if(!id.equals(previousId)){
+            if(!seenIds.add(id)){
+                grouped = false;
+                seenIds = null;
+                return;
+            }
+            previousId = id;
+            nrPatients++;
+            currentRepeat = 0;
+        }
+        currentRepeat++;
+        maxRepeat = Math.max(maxRepeat, currentRepeat);
+    }
+
+    /**
+     * called after the last line; releases the patients seen
+     */
+    void finish(){
+        seenIds = null;
+    }
+
+    /**
+     * returns whether the lines of each patient are next to each other
+     * @return true/false
+     */
+    boolean isGrouped(){
+        return grouped;
+    }
+
+    /**
+     * returns the number of patients; only complete if the lines are grouped
+     * @return the number of patients
+     */
+    int getNrPatients(){
+        return nrPatients;
+    }
+
+    /**
+     * returns the maximum number of lines of a patient; only complete if the lines are grouped
+     * @return the maximum number of lines
+     */
+    int getMaxRepeat(){
+        return maxRepeat;
+    }
+}
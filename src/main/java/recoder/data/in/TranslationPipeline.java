@@ -0,0 +1,318 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.data.in;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * translates data lines using three stages which run at the same time:
+ *  - a reader thread, which reads the lines and groups them into batches
+ *  - one or more translator threads, which prepare and translate the lines of a batch
+ *  - a writer thread, which hands the translated lines to the output, in the original order
+ * The stages are linked by bounded queues; a stage that runs ahead has to wait until the next stage has room again.
+ * The writer keeps batches that arrive early until it's their turn. To bound these as well, a translator only
+ * translates a batch that is less than queueCapacity batches ahead of the batch the writer needs next, so a
+ * translator that stalls makes the others wait instead of letting the early batches pile up.
+ * How full the queues were and how long the stages waited is logged when the pipeline is done.
+ *
+ * @param <T> type of the lines that are read, e.g. the raw text of a line
+ */
+class TranslationPipeline<T> {
+    private static final Logger logger = LogManager.getLogger(TranslationPipeline.class.getName());
+    private static final int batchSize = 1000;
+    private static final int queueCapacity = 16;
+
+    private final Function<T, List<String>> prepare;
+    private final Function<List<String>, List<String>> translator;
+    private final Consumer<List<String>> sink;
+    private final int nrTranslators;
+
+    private final BlockingQueue<Batch> readQueue = new ArrayBlockingQueue<>(queueCapacity);
+    private final BlockingQueue<Batch> writeQueue = new ArrayBlockingQueue<>(queueCapacity);
+    private final QueueMetrics readQueueMetrics = new QueueMetrics();
+    private final QueueMetrics writeQueueMetrics = new QueueMetrics();
+
+    // time the stages spent waiting for a queue, in nanoseconds
+    private final AtomicLong readerStallTime = new AtomicLong();
+    private final AtomicLong translatorInputStallTime = new AtomicLong();
+    private final AtomicLong translatorOutputStallTime = new AtomicLong();
+    private final AtomicLong writerStallTime = new AtomicLong();
+
+    // sequence number of the batch the writer needs next; guarded by reorderWindow
+    private final Object reorderWindow = new Object();
+    private long writerSequenceNr = 0;
+
+    // the first error that occurred in one of the stages
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    /**
+     * new pipeline
+     * @param prepare       turns a line that was read into a data line
+     * @param translator    translates a data line; called from several threads at once
+     * @param sink          receives the translated lines, in the original order
+     * @param nrTranslators number of translator threads
+     */
+    TranslationPipeline(Function<T, List<String>> prepare, Function<List<String>, List<String>> translator, Consumer<List<String>> sink, int nrTranslators){
+        this.prepare = prepare;
+        this.translator = translator;
+        this.sink = sink;
+        this.nrTranslators = Math.max(1, nrTranslators);
+    }
+
+    /**
+     * runs the pipeline and waits until all lines have been handed to the sink
+     * @param source the lines to translate; only used by the reader thread
+     */
+    void run(Iterator<T> source){
+        long start = System.nanoTime();
+        threads.add(new Thread(() -> read(source), "recoder-reader"));
+        for(int i=0; i<nrTranslators; i++){
+            threads.add(new Thread(this::translate, "recoder-translator-"+i));
+        }
+        threads.add(new Thread(this::write, "recoder-writer"));
+        threads.forEach(Thread::start);
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            threads.forEach(Thread::interrupt);
+            throw new RuntimeException("The translation of the data lines was interrupted");
+        }
+
+        Throwable throwable = error.get();
+        if(throwable!=null){
+            if(throwable instanceof RuntimeException){
+                throw (RuntimeException) throwable;
+            }
+            throw new RuntimeException("A fatal exception occurred whilst translating the dataset: "+throwable.getMessage());
+        }
+        logMetrics(System.nanoTime()-start);
+    }
+
+    /**
+     * reader stage: groups the lines into batches and puts them on the read queue; ends with an end marker for
+     * each of the translators
+     * @param source the lines to translate
+     */
+    private void read(Iterator<T> source){
+        try {
+            long sequenceNr = 0;
+            List<T> lines = new ArrayList<>(batchSize);
+            while (source.hasNext()) {
+                lines.add(source.next());
+                if (lines.size() == batchSize) {
+                    put(readQueue, new Batch(sequenceNr++, lines), readQueueMetrics, readerStallTime);
+                    lines = new ArrayList<>(batchSize);
+                }
+            }
+            if (!lines.isEmpty()) {
+                put(readQueue, new Batch(sequenceNr, lines), readQueueMetrics, readerStallTime);
+            }
+            for(int i=0; i<nrTranslators; i++){
+                put(readQueue, Batch.END, readQueueMetrics, readerStallTime);
+            }
+        } catch (Throwable e){
+            fail(e);
+        }
+    }
+
+    /**
+     * translator stage: translates the batches on the read queue and puts them on the write queue
+     */
+    private void translate(){
+        try {
+            Batch batch;
+            while ((batch = take(readQueue, translatorInputStallTime)) != Batch.END) {
+                waitForReorderWindow(batch.sequenceNr);
+                List<List<String>> translatedLines = new ArrayList<>(batch.lines.size());
+                for (Object line : batch.lines) {
+                    @SuppressWarnings("unchecked")
+                    List<String> dataLine = prepare.apply((T) line);
+                    translatedLines.add(translator.apply(dataLine));
+                }
+                put(writeQueue, new Batch(batch.sequenceNr, translatedLines), writeQueueMetrics, translatorOutputStallTime);
+            }
+            put(writeQueue, Batch.END, writeQueueMetrics, translatorOutputStallTime);
+        } catch (Throwable e){
+            fail(e);
+        }
+    }
+
+    /**
+     * waits until a batch is within the reorder window, i.e. less than queueCapacity batches ahead of the batch
+     * the writer needs next
+     * @param sequenceNr sequence number of the batch
+     * @throws InterruptedException when the pipeline is stopped
+     */
+    private void waitForReorderWindow(long sequenceNr) throws InterruptedException{
+        synchronized (reorderWindow){
+            if(sequenceNr<writerSequenceNr+queueCapacity){
+                return;
+            }
+            long start = System.nanoTime();
+            while(sequenceNr>=writerSequenceNr+queueCapacity){
+                reorderWindow.wait();
+            }
+            translatorOutputStallTime.addAndGet(System.nanoTime()-start);
+        }
+    }
+
+    /**
+     * writer stage: hands the translated batches to the sink in the order in which they were read
+     * batches that arrive early are kept until it's their turn; there are less than queueCapacity of them
+     */
+    @SuppressWarnings("unchecked")
+    private void write(){
+        try {
+            Map<Long, Batch> waitingBatches = new HashMap<>();
+            long nextSequenceNr = 0;
+            int nrEnded = 0;
+            while (nrEnded < nrTranslators) {
+                Batch batch = take(writeQueue, writerStallTime);
+                if (batch == Batch.END) {
+                    nrEnded++;
+                    continue;
+                }
+                waitingBatches.put(batch.sequenceNr, batch);
+                boolean advanced = false;
+                while ((batch = waitingBatches.remove(nextSequenceNr)) != null) {
+                    for (Object translatedLine : batch.lines) {
+                        sink.accept((List<String>) translatedLine);
+                    }
+                    nextSequenceNr++;
+                    advanced = true;
+                }
+                if (advanced) {
+                    // let the translators that wait for the reorder window continue
+                    synchronized (reorderWindow) {
+                        writerSequenceNr = nextSequenceNr;
+                        reorderWindow.notifyAll();
+                    }
+                }
+            }
+        } catch (Throwable e){
+            fail(e);
+        }
+    }
+
+    /**
+     * puts a batch on a queue, waiting while the queue is full
+     * @param queue      the queue
+     * @param batch      the batch
+     * @param metrics    metrics of the queue
+     * @param stallTime  time spent waiting by the stage
+     * @throws InterruptedException when the pipeline is stopped
+     */
+    private void put(BlockingQueue<Batch> queue, Batch batch, QueueMetrics metrics, AtomicLong stallTime) throws InterruptedException{
+        if(!queue.offer(batch)){
+            long start = System.nanoTime();
+            queue.put(batch);
+            stallTime.addAndGet(System.nanoTime()-start);
+        }
+        metrics.sample(queue.size());
+    }
+
+    /**
+     * takes a batch from a queue, waiting while the queue is empty
+     * @param queue     the queue
+     * @param stallTime time spent waiting by the stage
+     * @return the batch
+     * @throws InterruptedException when the pipeline is stopped
+     */
+    private Batch take(BlockingQueue<Batch> queue, AtomicLong stallTime) throws InterruptedException{
+        Batch batch = queue.poll();
+        if(batch==null){
+            long start = System.nanoTime();
+            batch = queue.take();
+            stallTime.addAndGet(System.nanoTime()-start);
+        }
+        return batch;
+    }
+
+    /**
+     * stores the error and stops the other stages, which may be waiting for a queue
+     * @param throwable the error
+     */
+    private void fail(Throwable throwable){
+        if(error.compareAndSet(null, throwable)){
+            threads.forEach(Thread::interrupt);
+        }
+    }
+
+    /**
+     * logs the queue depths and the times the stages had to wait
+     * @param totalTime time the pipeline ran, in nanoseconds
+     */
+    private void logMetrics(long totalTime){
+        logger.log(Level.INFO, "Pipeline finished in {} ms using {} translator thread(s)", totalTime/1000000, nrTranslators);
+        logger.log(Level.INFO, "Pipeline read queue: average depth {}, max depth {} of {}", readQueueMetrics.getAverageDepth(), readQueueMetrics.maxDepth, queueCapacity);
+        logger.log(Level.INFO, "Pipeline write queue: average depth {}, max depth {} of {}", writeQueueMetrics.getAverageDepth(), writeQueueMetrics.maxDepth, queueCapacity);
+        logger.log(Level.INFO, "Pipeline stalls: reader waited {} ms for the translators, translators waited {} ms for input and {} ms for the writer, writer waited {} ms for input",
+                readerStallTime.get()/1000000, translatorInputStallTime.get()/1000000, translatorOutputStallTime.get()/1000000, writerStallTime.get()/1000000);
+    }
+
+    /**
+     * a numbered batch of lines; the same class is used for lines that were read and lines that were translated
+     */
+    private static class Batch {
+        private static final Batch END = new Batch(-1, Collections.emptyList());
+
+        private final long sequenceNr;
+        private final List<?> lines;
+
+        private Batch(long sequenceNr, List<?> lines){
+            this.sequenceNr = sequenceNr;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * depth of a queue, sampled each time a batch is put on the queue
+     */
+    private static class QueueMetrics {
+        private int maxDepth = 0;
+        private long totalDepth = 0;
+        private long nrSamples = 0;
+
+        private synchronized void sample(int depth){
+            maxDepth = Math.max(maxDepth, depth);
+            totalDepth += depth;
+            nrSamples++;
+        }
+
+        private synchronized String getAverageDepth(){
+            return nrSamples==0 ? "0" : String.format(Locale.ROOT, "%.1f", (double) totalDepth/nrSamples);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.data.out;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * the lines of a patient in the wide format, by repeat
+ */
+class DataRepeats{
+    // null as long as no lines of this id are in memory
+    private Map<Integer, List<String>> dataRepeatMap;
+    private int maxRepeat;
+    private String id;
+
+    DataRepeats(String id){
+        this(id, 0);
+    }
+
+    /**
+     * creates the object for an id of which the lines of the first repeats were already written to a temporary file
+     * @param id        the identifier
+     * @param maxRepeat the number of repeats written so far
+     */
+    DataRepeats(String id, int maxRepeat){
+        this.id = id;
+        this.maxRepeat = maxRepeat;
+    }
+
+    /**
+     * returns the number of repeats this id has
+     * @return the number of repeats this id has
+     */
+    int getMaxRepeat(){
+        return maxRepeat;
+    }
+
+    /**
+     * add a line to this id
+     * @param line       the line to add
+     * @param idIndex    index of the column which contains the id
+     * @return bitset which contains which positions contain data
+     */
+    BitSet addLine(List<String> line, int idIndex){
+        maxRepeat++;
+
+        // remove the identifier from the line, as we don't want to repeat it (as that may confuse the datateam's scripts...)
+        line.remove(idIndex);
+
+        // store the line for the repeat
+        getDataRepeatMap().put(maxRepeat, line);
+
+        // return which positions contain data
+        BitSet hasData = new BitSet(line.size());
+        for(int i=0; i<line.size(); i++){
+            if(!line.get(i).isEmpty()){
+                hasData.set(i);
+            }
+        }
+        return hasData;
+    }
+
+    /**
+     * returns the identifier
+     * @return the identifier
+     */
+    String getId(){
+        return id;
+    }
+
+    /**
+     * returns whether lines of this id are in memory
+     * @return true/false
+     */
+    boolean hasLines(){
+        return dataRepeatMap!=null;
+    }
+
+    /**
+     * returns the lines in memory by repeat, creating the map if necessary
+     * @return the lines by repeat
+     */
+    private Map<Integer, List<String>> getDataRepeatMap(){
+        if(dataRepeatMap==null){
+            dataRepeatMap = new HashMap<>();
+        }
+        return dataRepeatMap;
+    }
+
+    /**
+     * removes the lines from memory, e.g. because they were written to a temporary file; the number of repeats
+     * is kept, so lines which are added later get the right repeat number
+     * @return the removed lines by repeat
+     */
+    Map<Integer, List<String>> removeLines(){
+        Map<Integer, List<String>> lines = dataRepeatMap;
+        dataRepeatMap = null;
+        return lines==null ? Collections.emptyMap() : lines;
+    }
+
+    /**
+     * stores the line of a repeat, e.g. when reading it back from a temporary file
+     * @param repeat the repeat
+     * @param line   the line, without the identifier
+     */
+    void putLine(int repeat, List<String> line){
+        getDataRepeatMap().put(repeat, line);
+        maxRepeat = Math.max(maxRepeat, repeat);
+    }
+
+    /**
+     * write the filtered line of a repeat, with only the entries which need to appear in the output
+     * @param rowEncoder        the encoder to write to
+     * @param repeat            repeat for which we want the data
+     * @param dataFilter        filter for the repeat
+     * @param emptyRepeatFiller what to write if there is no data for the repeat
+     */
+    void writeData(RowEncoder rowEncoder, int repeat, BitSet dataFilter, String emptyRepeatFiller){
+        List<String> line = dataRepeatMap==null ? null : dataRepeatMap.get(repeat);
+        if(line==null){
+            // if no data for the repeat exists for this patient, write empty entries for all the entries for which
+            // data should exist in the output
+            rowEncoder.write(emptyRepeatFiller);
+            return;
+        }
+        boolean first = true;
+        for(int i=dataFilter.nextSetBit(0); i>=0 && i<line.size(); i=dataFilter.nextSetBit(i+1)){
+            if(!first){
+                rowEncoder.write('\t');
+            }
+            rowEncoder.write(line.get(i));
+            first = false;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.data.out;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * writes tab separated lines to a file as ISO-8859-1, the encoding of the PALGA exports
+ * The values are encoded directly into a large buffer, which is written to the file channel when it is full, so
+ * writing a line doesn't create a String for the line. Characters which don't exist in ISO-8859-1 are written as
+ * a question mark, just like an OutputStreamWriter does.
+ * The lines are written to a temporary file next to the output file, which only replaces the output file when the
+ * writer is finished. If the writer is closed without finishing it, e.g. because the translation failed, the
+ * temporary file is removed and an existing output file is left as it was.
+ * The writer is used by a single thread.
+ */
+class LineWriter implements AutoCloseable {
+    private static final int bufferSize = 1024*1024;
+    private static final String lineSeparator = System.lineSeparator();
+
+    private final Path file;
+    private final Path temporaryFile;
+    private final FileChannel channel;
+    private final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(bufferSize);
+    private boolean closed = false;
+
+    /**
+     * opens a temporary file for the file; an existing file is only overwritten when the writer is finished
+     * @param fileName name of the file
+     * @throws IOException when the temporary file cannot be created
+     */
+    LineWriter(String fileName) throws IOException{
+        file = Paths.get(fileName).toAbsolutePath();
+        temporaryFile = file.resolveSibling("."+file.getFileName()+".tmp");
+        channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * writes the values of a line, separated by tabs, followed by a line separator
+     * @param values the values
+     * @throws IOException when writing fails
+     */
+    void writeLine(List<String> values) throws IOException{
+        for(int i=0; i<values.size(); i++){
+            if(i>0){
+                write('\t');
+            }
+            write(values.get(i));
+        }
+        write(lineSeparator);
+    }
+
+    /**
+     * writes a value
+     * @param value the value
+     * @throws IOException when writing fails
+     */
+    void write(String value) throws IOException{
+        for(int i=0; i<value.length(); i++){
+            char c = value.charAt(i);
+            // a surrogate pair is a single character, which is written as a single question mark
+            if(Character.isHighSurrogate(c) && i+1<value.length() && Character.isLowSurrogate(value.charAt(i+1))){
+                i++;
+            }
+            write(c);
+        }
+    }
+
+    /**
+     * writes a character
+     * @param c the character
+     * @throws IOException when writing fails
+     */
+    void write(char c) throws IOException{
+        if(!byteBuffer.hasRemaining()){
+            flushBuffer();
+        }
+        byteBuffer.put(c<256 ? (byte) c : (byte) '?');
+    }
+
+    /**
+     * writes bytes which are already encoded as ISO-8859-1, e.g. a row encoded by a RowEncoder
+     * @param bytes the bytes
+     * @throws IOException when writing fails
+     */
+    void write(byte [] bytes) throws IOException{
+        write(bytes, bytes.length);
+    }
+
+    /**
+     * writes the first bytes of an array, which are already encoded as ISO-8859-1
+     * @param bytes  the bytes
+     * @param length the number of bytes to write
+     * @throws IOException when writing fails
+     */
+    void write(byte [] bytes, int length) throws IOException{
+        int offset = 0;
+        while(offset<length){
+            if(!byteBuffer.hasRemaining()){
+                flushBuffer();
+            }
+            int chunkLength = Math.min(byteBuffer.remaining(), length-offset);
+            byteBuffer.put(bytes, offset, chunkLength);
+            offset += chunkLength;
+        }
+    }
+
+    /**
+     * writes the buffer to the file
+     * @throws IOException when writing fails
+     */
+    private void flushBuffer() throws IOException{
+        byteBuffer.flip();
+        while(byteBuffer.hasRemaining()){
+            channel.write(byteBuffer);
+        }
+        byteBuffer.clear();
+    }
+
+    /**
+     * writes what is left in the buffer, closes the temporary file and moves it into place as the file
+     * @throws IOException when writing or moving the file fails; the temporary file is removed
+     */
+    void finish() throws IOException{
+        try {
+            flushBuffer();
+            channel.close();
+            try {
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e){
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            closed = true;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * closes the writer without finishing it, which removes the temporary file; closing a finished or closed
+     * writer does nothing
+     * @throws IOException when the temporary file cannot be removed
+     */
+    @Override
+    public void close() throws IOException{
+        if(closed){
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+}
@@ -26,7 +26,9 @@ import java.util.List;
  */
 public interface OutputData {
     void addHeaderValue(String origHeaderName, String translatedName, boolean housekeeping);
+    void startDataLines();
     void addDataLine(List<String> line);
     List<OutputHeaderItem> getHeaderList();
     void writeData();
+    void close();
 }
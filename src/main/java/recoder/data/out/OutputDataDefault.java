@@ -43,4 +43,20 @@ abstract class OutputDataDefault implements OutputData{
     public List<OutputHeaderItem> getHeaderList(){
         return headerList;
     }
+
+    /**
+     * called when the header is complete, before the first data line is added
+     * by default there is nothing to do here
+     */
+    public void startDataLines(){
+
+    }
+
+    /**
+     * called when the translation failed, to release what is still open
+     * by default there is nothing to do here
+     */
+    public void close(){
+
+    }
 }
@@ -21,19 +21,19 @@ package recoder.data.out;
 
 import recoder.settings.RunParameters;
 
-import java.io.BufferedWriter;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.List;
 import java.util.stream.Collectors;
 
 /**
  * class used for output data
+ * the header is written as soon as the header is complete; after that each line is written as soon as it arrives,
+ * so the translated lines are never kept in memory. The lines are written to a temporary file, which replaces the
+ * output file once all the lines are written
  */
 public class OutputDataNormal extends OutputDataDefault{
 
-    private List<List<String>> lines = new ArrayList<>();
+    private LineWriter lineWriter;
 
     public OutputDataNormal(RunParameters runParameters){
         super(runParameters);
@@ -49,29 +49,58 @@ public class OutputDataNormal extends OutputDataDefault{
     }
 
     /**
-     * add a line to our lines
+     * open the temporary output file and write the header, as the header is complete now
+     */
+    @Override
+    public void startDataLines(){
+        try {
+            lineWriter = new LineWriter(runParameters.getDataOutFileName());
+            lineWriter.write(headerList.stream().map(OutputHeaderItem::getTranslatedName).collect(Collectors.joining("\t")));
+            lineWriter.write(System.lineSeparator());
+        } catch (IOException e){
+            close();
+            throw new RuntimeException("A severe error occurred while writing the output file: "+e.getMessage());
+        }
+    }
+
+    /**
+     * write a line to the output file
      * @param line    the line to add
      */
     public void addDataLine(List<String> line) {
-        lines.add(line);
+        try {
+            lineWriter.writeLine(line);
+        } catch (IOException e){
+            close();
+            throw new RuntimeException("A severe error occurred while writing the output file: "+e.getMessage());
+        }
     }
 
     /**
-     * write the data to a file
+     * the lines were already written, so we only have to flush the file and move it into place
      */
     public void writeData(){
-        String outFileName = runParameters.getDataOutFileName();
-        try(BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFileName), "ISO-8859-1"))){
-            // write the header; headerlist contains OutputHeaderItems
-            bufferedWriter.write(headerList.stream().map(f-> f.getTranslatedName()).collect(Collectors.joining("\t"))+System.lineSeparator());
-
-            // write the lines
-            for(List<String> line:lines){
-                bufferedWriter.write(line.stream().collect(Collectors.joining("\t"))+System.lineSeparator());
+        try {
+            if(lineWriter!=null) {
+                lineWriter.finish();
             }
-
-        } catch (Exception e){
+        } catch (IOException e){
             throw new RuntimeException("A severe error occurred while writing the output file: "+e.getMessage());
         }
     }
+
+    /**
+     * removes the temporary output file if it is still open, e.g. because the translation failed, so an existing
+     * output file is left untouched
+     */
+    @Override
+    public void close(){
+        try {
+            if(lineWriter!=null) {
+                lineWriter.close();
+            }
+        } catch (IOException e){
+            // the output is incomplete anyway and the output file wasn't touched, so there's nothing else to do
+        }
+    }
 }
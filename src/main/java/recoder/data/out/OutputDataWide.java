@@ -19,16 +19,23 @@
 
 package recoder.data.out;
 
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import recoder.settings.RunParameters;
 
-import java.io.BufferedWriter;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 /**
  * class used for output data
@@ -43,8 +50,19 @@ import java.util.stream.Collectors;
  * needs to become
  * ID           1_Localization  2_Localization
  * MOC_A_0003   coecum          rectum
+ *
+ * The lines of all patients are kept until the output is written. If they exceed the memory budget of the run, the
+ * lines are written to temporary files, sorted by id, and merged per patient when the output is written.
+ * If the lines of each patient are next to each other, the completed patients are kept in memory in the order of the
+ * data file. Once they exceed the memory budget, they and each patient completed after that are appended to a single
+ * temporary file instead, which is read back when the output is written, as the header can only be written once all
+ * the lines are known.
+ * The rows of the output are ordered by id, or, if the lines of each patient are next to each other, in the order of
+ * the data file. The rows are rendered in batches by the translation threads and written in that order.
  */
 public class OutputDataWide extends OutputDataDefault{
+    private static final Logger logger = LogManager.getLogger(OutputDataWide.class.getName());
+    private static final int renderBatchSize = 1024;
 
     private OutputHeaderItem idItem;
     private List<OutputHeaderItem> repeatingHeaderList = new ArrayList<>();
@@ -55,13 +73,32 @@ public class OutputDataWide extends OutputDataDefault{
     // stores which data entries are used by a repeat
     // so, if e.g. localization_II does not contain data for any patient for the second report
     // this will have a false and will not appear in the output, nor in the tM tree
-    private Map<Integer, List<Boolean>> repeatHasDataMap = new HashMap<>();
+    private Map<Integer, BitSet> repeatHasDataMap = new HashMap<>();
 
     // store the index of the id
     private int idIndex=-1;
     // store the maximum number of repeats (which basically is the number of reports a single id has)
     private int maxRepeat=-1;
 
+    // estimated memory used by the lines that are kept in memory, and by the patients they belong to
+    private long linesInMemoryBytes = 0;
+    private long patientsInMemoryBytes = 0;
+    // for the patients whose lines were all written to temporary files, only the number of repeats so far is kept,
+    // so lines that are added later get the right repeat number
+    private Map<String, Integer> spilledRepeatCounts = new HashMap<>();
+    private long spilledRepeatCountsBytes = 0;
+    // temporary files with the lines that didn't fit in memory; null as long as everything fits
+    private RepeatRunStore repeatRunStore;
+
+    // whether the lines of each patient are next to each other, and if so, the patient whose lines are being added
+    // and the completed patients that are kept in memory, in the order of the data file
+    private boolean groupedInput = false;
+    private DataRepeats currentDataRepeats;
+    private List<DataRepeats> completedDataRepeats = new ArrayList<>();
+
+    // for each repeat, what is written if a patient doesn't have the repeat
+    private String [] emptyRepeatFillers;
+
     public OutputDataWide(RunParameters runParameters, int idIndex){
         super(runParameters);
         this.idIndex = idIndex;
@@ -88,6 +125,14 @@ public class OutputDataWide extends OutputDataDefault{
         }
     }
 
+    /**
+     * tells that the lines of each patient are next to each other, so the patients can be written one by one
+     * has to be called before the first line is added
+     */
+    public void useGroupedInput(){
+        groupedInput = true;
+    }
+
     /**
      * add a line to our lines
      * @param line    the line to add
@@ -96,27 +141,17 @@ public class OutputDataWide extends OutputDataDefault{
         // Find the identifier of the line
         String id = line.get(idIndex);
 
-        // check whether we need to add a datarepeats object for this id
-        if(!dataRepeatMap.containsKey(id)){
-            dataRepeatMap.put(id, new DataRepeats());
-        }
-
         // retrieve the datarepeats object
-        DataRepeats dataRepeats = dataRepeatMap.get(id);
-        // add the data line to the object and receive a List which contains which positions of the data contain values
+        DataRepeats dataRepeats = groupedInput ? getCurrentDataRepeats(id) : getDataRepeats(id);
+        // add the data line to the object and receive a BitSet which contains which positions of the data contain values
         // so if col1 has data, col2 does not have data, col3 has data, this will return true, false, true
-        List<Boolean> hasDataForPatientRepeat = dataRepeats.addLine(line, idIndex);
+        BitSet hasDataForPatientRepeat = dataRepeats.addLine(line, idIndex);
         // retrieve the current repeat of this data and check whether it is bigger than our current maximum repeat
         int patientMaxRepeat = dataRepeats.getMaxRepeat();
         if(patientMaxRepeat>maxRepeat){
             maxRepeat = patientMaxRepeat;
         }
 
-        // check whether a boolean list already exists for the repeat
-        if(!repeatHasDataMap.containsKey(patientMaxRepeat)){
-            repeatHasDataMap.put(patientMaxRepeat, hasDataForPatientRepeat);
-        }
-
         // retrieve the information about stored information for this repeat and
         // perform an "OR" with the hasDataForPatientRepeat
         // basically this means that if some other patient had
@@ -126,10 +161,164 @@ public class OutputDataWide extends OutputDataDefault{
         // the new situation will be true, true, false, true
         // if that is the final situation, the false will not appear in the output as there is no data for it in
         // any of the patients
-        List<Boolean> hasDataForRepeat = repeatHasDataMap.get(patientMaxRepeat);
-        for(int i=0; i<hasDataForRepeat.size(); i++){
-            hasDataForRepeat.set(i, hasDataForRepeat.get(i)||hasDataForPatientRepeat.get(i));
+        repeatHasDataMap.computeIfAbsent(patientMaxRepeat, k -> new BitSet()).or(hasDataForPatientRepeat);
+
+        if(groupedInput && repeatRunStore!=null){
+            // the completed patients are appended to the temporary file already, so only the current one is in memory
+            return;
+        }
+        linesInMemoryBytes += estimateSize(line);
+        if(exceedsMemoryBudget()){
+            spillLines();
+        }
+    }
+
+    /**
+     * returns whether the lines in memory have to be written to a temporary file
+     * the repeat counts of the patients that were written already stay in memory, so they are counted as well, but
+     * they always leave a quarter of the budget to the lines, so the temporary files don't become tiny
+     * @return true/false
+     */
+    private boolean exceedsMemoryBudget(){
+        long memoryBudgetMB = runParameters.getWideMemoryBudgetMB();
+        if(memoryBudgetMB<0){
+            return false;
+        }
+        long memoryBudget = memoryBudgetMB*1024*1024;
+        long linesBudget = Math.max(memoryBudget-spilledRepeatCountsBytes, memoryBudget/4);
+        return linesInMemoryBytes+patientsInMemoryBytes>linesBudget;
+    }
+
+    /**
+     * returns the datarepeats object of an id, creating it if necessary
+     * @param id the identifier
+     * @return the datarepeats object
+     */
+    private DataRepeats getDataRepeats(String id){
+        // check whether we need to add a datarepeats object for this id
+        DataRepeats dataRepeats = dataRepeatMap.get(id);
+        if(dataRepeats==null){
+            // if the earlier lines of the id were written to a temporary file, continue with its repeat count
+            Integer spilledRepeatCount = spilledRepeatCounts.remove(id);
+            if(spilledRepeatCount!=null){
+                spilledRepeatCountsBytes -= estimateRepeatCountSize(id);
+            }
+            dataRepeats = new DataRepeats(id, spilledRepeatCount==null ? 0 : spilledRepeatCount);
+            dataRepeatMap.put(id, dataRepeats);
+            patientsInMemoryBytes += estimatePatientSize(id);
+        }
+        return dataRepeats;
+    }
+
+    /**
+     * returns the datarepeats object of the current patient; if the id differs, the current patient is complete
+     * and is kept in memory, or appended to the temporary file if the lines exceeded the memory budget
+     * @param id the identifier
+     * @return the datarepeats object
+     */
+    private DataRepeats getCurrentDataRepeats(String id){
+        if(currentDataRepeats!=null && !currentDataRepeats.getId().equals(id)){
+            if(repeatRunStore==null){
+                completedDataRepeats.add(currentDataRepeats);
+            }
+            else {
+                try {
+                    repeatRunStore.append(currentDataRepeats);
+                } catch (IOException e){
+                    close();
+                    throw new RuntimeException("A severe error occurred while writing a temporary file: "+e.getMessage());
+                }
+            }
+            currentDataRepeats = null;
+        }
+        if(currentDataRepeats==null){
+            currentDataRepeats = new DataRepeats(id);
+            if(repeatRunStore==null){
+                patientsInMemoryBytes += estimatePatientSize(id);
+            }
+        }
+        return currentDataRepeats;
+    }
+
+    /**
+     * returns the temporary files, creating them if necessary
+     * @return the temporary files
+     * @throws IOException when the temporary directory cannot be created
+     */
+    private RepeatRunStore getRepeatRunStore() throws IOException{
+        if(repeatRunStore==null){
+            File outputDirectory = new File(runParameters.getDataOutFileName()).getAbsoluteFile().getParentFile();
+            repeatRunStore = new RepeatRunStore(outputDirectory.toPath());
+        }
+        return repeatRunStore;
+    }
+
+    /**
+     * writes the lines in memory to a temporary file
+     * if the lines are grouped by patient, the completed patients are appended to the temporary file in the order of
+     * the data file, and so will all the patients that are completed later
+     */
+    private void spillLines(){
+        try {
+            if(repeatRunStore==null){
+                logger.log(Level.INFO, "Wide format: the lines exceed the memory budget of {} MB and are written to temporary files", runParameters.getWideMemoryBudgetMB());
+            }
+            RepeatRunStore runStore = getRepeatRunStore();
+            if(groupedInput){
+                // the lines of the current patient stay in memory until the patient is complete
+                for(DataRepeats dataRepeats:completedDataRepeats){
+                    runStore.append(dataRepeats);
+                }
+                completedDataRepeats = new ArrayList<>();
+            }
+            else {
+                // only the repeat counts of the written patients are kept
+                runStore.writeRun(dataRepeatMap.values());
+                for(DataRepeats dataRepeats:dataRepeatMap.values()){
+                    spilledRepeatCounts.put(dataRepeats.getId(), dataRepeats.getMaxRepeat());
+                    spilledRepeatCountsBytes += estimateRepeatCountSize(dataRepeats.getId());
+                }
+                dataRepeatMap = new HashMap<>();
+            }
+            linesInMemoryBytes = 0;
+            patientsInMemoryBytes = 0;
+        } catch (IOException e){
+            close();
+            throw new RuntimeException("A severe error occurred while writing a temporary file: "+e.getMessage());
+        }
+    }
+
+    /**
+     * returns a rough estimate of the memory used by a line
+     * @param line the line
+     * @return the estimated number of bytes
+     */
+    private static long estimateSize(List<String> line){
+        long size = 64;
+        for(String value:line){
+            size += 48+2*value.length();
         }
+        return size;
+    }
+
+    /**
+     * returns a rough estimate of the memory used by a patient whose lines are in memory, without the lines
+     * @param id the identifier
+     * @return the estimated number of bytes
+     */
+    private static long estimatePatientSize(String id){
+        // the datarepeats object, its map of lines and the entry in the map of patients
+        return 160+2*id.length();
+    }
+
+    /**
+     * returns a rough estimate of the memory used by the repeat count of a patient whose lines were written
+     * @param id the identifier
+     * @return the estimated number of bytes
+     */
+    private static long estimateRepeatCountSize(String id){
+        // the entry in the map, the identifier and the count
+        return 96+2*id.length();
     }
 
     /**
@@ -147,7 +336,7 @@ public class OutputDataWide extends OutputDataDefault{
             // otherwise, for all repeats
             for(int i=1; i<=maxRepeat; i++){
                 // fetch which positions have data for the repeat
-                List<Boolean> repeatHasData = repeatHasDataMap.get(i);
+                BitSet repeatHasData = repeatHasDataMap.get(i);
 
                 for(int j=0; j<repeatingHeaderList.size(); j++){
                     // if the entry has data, add the entry's header to the headerList, also storing the appropriate repeat number
@@ -166,106 +355,203 @@ public class OutputDataWide extends OutputDataDefault{
      */
     public void writeData(){
         String outFileName = runParameters.getDataOutFileName();
-        try(BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFileName), "ISO-8859-1"))){
+        int nrThreads = runParameters.getTranslationThreads();
+        ForkJoinPool renderPool = nrThreads>1 ? new ForkJoinPool(nrThreads) : null;
+        try(LineWriter lineWriter = new LineWriter(outFileName)){
 
             // write the header; headerlist contains OutputHeaderItems
-            bufferedWriter.write(headerList.stream().map(f-> f.getRepeat()+"_"+f.getTranslatedName()).collect(Collectors.joining("\t"))+System.lineSeparator());
+            for(int i=0; i<headerList.size(); i++){
+                if(i>0){
+                    lineWriter.write('\t');
+                }
+                lineWriter.write(Integer.toString(headerList.get(i).getRepeat()));
+                lineWriter.write('_');
+                lineWriter.write(headerList.get(i).getTranslatedName());
+            }
+            lineWriter.write(System.lineSeparator());
+
+            // what is written for a repeat that a patient doesn't have: an empty value for each column of the repeat
+            emptyRepeatFillers = new String[maxRepeat+1];
+            for(int i=1; i<=maxRepeat; i++){
+                emptyRepeatFillers[i] = createEmptyRepeatFiller(repeatHasDataMap.get(i).cardinality());
+            }
 
             // write the lines
-            for(DataRepeats dataRepeats:dataRepeatMap.values()) {
-                List<String> data = new ArrayList<>();
-                for (int i = 1; i <= maxRepeat; i++) {
-                    // retrieve which entries have data and, therefore, should exist in the final output
-                    List<Boolean> repeatHasDataList = repeatHasDataMap.get(i);
-                    // retrieve the dataline, providing the repeat number as well as the filter
-                    String dataLine = dataRepeats.getDataString(i, repeatHasDataList);
-
-                    // for the first entry, add the identifier
-                    if(i==1){
-                        dataLine = dataRepeats.getId()+"\t"+dataLine;
+            RowRenderer rowRenderer = new RowRenderer(lineWriter, renderPool);
+            if(groupedInput && repeatRunStore==null){
+                // all the patients are in memory, in the order of the data
+                for(DataRepeats dataRepeats:completedDataRepeats){
+                    rowRenderer.add(dataRepeats);
+                }
+                if(currentDataRepeats!=null){
+                    rowRenderer.add(currentDataRepeats);
+                }
+            }
+            else if(groupedInput){
+                // the lines of the last patient are still in memory; the patients are read back in the order of the data
+                if(currentDataRepeats!=null){
+                    repeatRunStore.append(currentDataRepeats);
+                    currentDataRepeats = null;
+                }
+                repeatRunStore.merge(dataRepeats -> {
+                    try {
+                        rowRenderer.add(dataRepeats);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
-                    // add the data line to a temporary list
-                    data.add(dataLine);
+                });
+            }
+            else if(repeatRunStore==null) {
+                List<DataRepeats> sortedRepeats = new ArrayList<>(dataRepeatMap.values());
+                sortedRepeats.sort(Comparator.comparing(DataRepeats::getId));
+                for (DataRepeats dataRepeats : sortedRepeats) {
+                    rowRenderer.add(dataRepeats);
                 }
-                // write the list
-                bufferedWriter.write(data.stream().collect(Collectors.joining("\t"))+System.lineSeparator());
             }
+            else{
+                // the lines that are still in memory become the last temporary file, after which all the files are merged
+                repeatRunStore.writeRun(dataRepeatMap.values());
+                dataRepeatMap = new HashMap<>();
+                spilledRepeatCounts = new HashMap<>();
+                logger.log(Level.INFO, "Wide format: merging {} temporary file(s)", repeatRunStore.getNrRuns());
+                repeatRunStore.merge(dataRepeats -> {
+                    try {
+                        rowRenderer.add(dataRepeats);
+                    } catch (IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            rowRenderer.flush();
+            lineWriter.finish();
         } catch (Exception e){
             throw new RuntimeException("A severe error occurred while writing the output file: "+e.getMessage());
+        } finally {
+            if(renderPool!=null){
+                renderPool.shutdown();
+            }
+            close();
         }
     }
 
-}
-
-class DataRepeats{
-    private Map<Integer, List<String>> dataRepeatMap = new HashMap<>();
-    private int maxRepeat = 0;
-    private String id;
-
-    DataRepeats(){
-
+    /**
+     * render the row of a patient: the identifier followed by the data of each repeat
+     * only reads the data, so rows can be rendered by several threads at once
+     * @param rowEncoder  the encoder to render to
+     * @param dataRepeats the data of the patient
+     */
+    private void renderRow(RowEncoder rowEncoder, DataRepeats dataRepeats){
+        rowEncoder.write(dataRepeats.getId());
+        for (int i = 1; i <= maxRepeat; i++) {
+            rowEncoder.write('\t');
+            // write the data of the repeat, using the entries which have data and, therefore, should exist in the final output
+            dataRepeats.writeData(rowEncoder, i, repeatHasDataMap.get(i), emptyRepeatFillers[i]);
+        }
+        rowEncoder.write(System.lineSeparator());
     }
 
     /**
-     * returns the number of repeats this id has
-     * @return the number of repeats this id has
+     * returns what is written for a repeat that a patient doesn't have
+     * @param nrColumns the number of columns of the repeat
+     * @return tabs separating nrColumns empty values
      */
-    int getMaxRepeat(){
-        return maxRepeat;
+    private static String createEmptyRepeatFiller(int nrColumns){
+        StringBuilder emptyRepeatFiller = new StringBuilder();
+        for(int i=1; i<nrColumns; i++){
+            emptyRepeatFiller.append('\t');
+        }
+        return emptyRepeatFiller.toString();
     }
 
     /**
-     * add a line to this id
-     * @param line       the line to add
-     * @param idIndex    index of the column which contains the id
-     * @return list which contains information whether or not the position contains data
+     * renders the rows of batches of patients, in parallel if a pool is available, and writes them in the order in
+     * which the patients were added
      */
-    List<Boolean> addLine(List<String> line, int idIndex){
-        maxRepeat++;
-        // store the identifier
-        if(maxRepeat==1){
-            id = line.get(idIndex);
+    private class RowRenderer {
+        private final LineWriter lineWriter;
+        private final ForkJoinPool renderPool;
+        private final List<DataRepeats> batch = new ArrayList<>();
+        // each thread renders into its own encoder, which is reused for all its rows
+        private final ThreadLocal<RowEncoder> rowEncoder = ThreadLocal.withInitial(RowEncoder::new);
+
+        /**
+         * new renderer
+         * @param lineWriter the writer to which the rows are written
+         * @param renderPool pool used to render the rows in parallel; null to render them sequentially
+         */
+        private RowRenderer(LineWriter lineWriter, ForkJoinPool renderPool){
+            this.lineWriter = lineWriter;
+            this.renderPool = renderPool;
         }
 
-        // remove the identifier from the line, as we don't want to repeat it (as that may confuse the datateam's scripts...)
-        line.remove(idIndex);
-
-        // store the line for the repeat
-        dataRepeatMap.put(maxRepeat, line);
+        /**
+         * adds a patient; without a pool the row is written right away, otherwise the rows are rendered and written
+         * once the batch is full
+         * @param dataRepeats the data of the patient
+         * @throws IOException when writing fails
+         */
+        private void add(DataRepeats dataRepeats) throws IOException{
+            if(renderPool==null){
+                RowEncoder encoder = rowEncoder.get();
+                encoder.reset();
+                renderRow(encoder, dataRepeats);
+                encoder.writeTo(lineWriter);
+                return;
+            }
+            batch.add(dataRepeats);
+            if(batch.size()>=renderBatchSize){
+                flush();
+            }
+        }
 
-        // return which positions contain data
-        return line.stream().map(t->!t.equalsIgnoreCase("")).collect(Collectors.toList());
-    }
+        /**
+         * renders the rows of the patients in the batch and writes them in the order of the batch
+         * @throws IOException when writing fails
+         */
+        private void flush() throws IOException{
+            if(batch.isEmpty()){
+                return;
+            }
+            byte [][] rows = new byte[batch.size()][];
+            try {
+                renderPool.submit(() -> IntStream.range(0, batch.size()).parallel().forEach(i -> rows[i] = render(batch.get(i)))).get();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Writing the output file was interrupted");
+            } catch (ExecutionException e){
+                if(e.getCause() instanceof RuntimeException){
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException("A severe error occurred while writing the output file: "+e.getCause().getMessage());
+            }
+            for(byte [] row:rows){
+                lineWriter.write(row);
+            }
+            batch.clear();
+        }
 
-    /**
-     * returns the identifier
-     * @return the identifier
-     */
-    String getId(){
-        return id;
+        /**
+         * renders the row of a patient
+         * @param dataRepeats the data of the patient
+         * @return the encoded row
+         */
+        private byte [] render(DataRepeats dataRepeats){
+            RowEncoder encoder = rowEncoder.get();
+            encoder.reset();
+            renderRow(encoder, dataRepeats);
+            return encoder.toByteArray();
+        }
     }
 
     /**
-     * get string representation of the filtered line
-     * @param repeat        repeat for which we want the data
-     * @param dataFilter    filter for the repeat
-     * @return filtered string with only the entries which need to appear in the output
+     * removes the temporary files, if any
      */
-    String getDataString(int repeat, List<Boolean> dataFilter){
-        List<String> dataList = new ArrayList<>();
-        if(dataRepeatMap.containsKey(repeat)){
-            List<String> line = dataRepeatMap.get(repeat);
-            for(int i=0; i<line.size(); i++){
-                if(dataFilter.get(i)){
-                    dataList.add(line.get(i));
-                }
-            }
-            return dataList.stream().collect(Collectors.joining("\t"));
-        }
-        else{
-            // if no data for the repeat exists for this patient, create empty entries for all the entries for which
-            // data should exist in the output
-            return dataFilter.stream().filter(t-> t).map(t->"").collect(Collectors.joining("\t"));
+    @Override
+    public void close(){
+        if(repeatRunStore!=null){
+            repeatRunStore.close();
+            repeatRunStore = null;
         }
     }
-}
\ No newline at end of file
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.data.out;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * temporary files with the lines of the wide format, used when the lines don't fit in memory
+ * Each time the lines in memory exceed the memory budget, they are written to a new run: a temporary file in which
+ * the lines are sorted by patient id and repeat. When the output is written, the runs are merged, so the lines of
+ * a patient arrive together while only the current line of each run is in memory.
+ * If there are more runs than can be merged at once, groups of runs are merged into larger runs first.
+ *
+ * Alternatively, if the lines of each patient arrive together, the patients can be appended to a single run one by
+ * one. Such a run is read back in the order in which the patients were appended and shouldn't be combined with
+ * sorted runs.
+ */
+class RepeatRunStore implements Closeable {
+    private static final int maxRunsPerMerge = 64;
+    private static final int streamBufferSize = 64*1024;
+
+    private final Path directory;
+    private final List<File> runs = new ArrayList<>();
+    private int nrRunsCreated = 0;
+    // the run to which patients are appended; null if there is none
+    private DataOutputStream appendStream;
+
+    /**
+     * new store; creates a temporary directory for the runs
+     * @param parentDirectory directory in which the temporary directory is created
+     * @throws IOException when the directory cannot be created
+     */
+    RepeatRunStore(Path parentDirectory) throws IOException{
+        directory = Files.createTempDirectory(parentDirectory, ".palgarecoder-wide");
+    }
+
+    /**
+     * returns the number of runs written so far
+     * @return the number of runs
+     */
+    int getNrRuns(){
+        return runs.size();
+    }
+
+    /**
+     * writes the lines in memory of the patients to a new run and removes them from memory
+     * @param dataRepeatsCollection the patients
+     * @throws IOException when the run cannot be written
+     */
+    void writeRun(Collection<DataRepeats> dataRepeatsCollection) throws IOException{
+        List<DataRepeats> sortedRepeats = new ArrayList<>();
+        for(DataRepeats dataRepeats:dataRepeatsCollection){
+            if(dataRepeats.hasLines()){
+                sortedRepeats.add(dataRepeats);
+            }
+        }
+        if(sortedRepeats.isEmpty()){
+            return;
+        }
+        sortedRepeats.sort(Comparator.comparing(DataRepeats::getId));
+
+        File run = createRunFile();
+        try(DataOutputStream dataOutputStream = createOutputStream(run)){
+            for(DataRepeats dataRepeats:sortedRepeats){
+                for(Map.Entry<Integer, List<String>> entry:new TreeMap<>(dataRepeats.removeLines()).entrySet()){
+                    writeRecord(dataOutputStream, new RunRecord(dataRepeats.getId(), entry.getKey(), entry.getValue()));
+                }
+            }
+            dataOutputStream.writeBoolean(false);
+        }
+        runs.add(run);
+    }
+
+    /**
+     * appends the lines in memory of a patient to the run for appending, and removes them from memory
+     * @param dataRepeats the patient
+     * @throws IOException when the run cannot be written
+     */
+    void append(DataRepeats dataRepeats) throws IOException{
+        if(appendStream==null){
+            File run = createRunFile();
+            appendStream = createOutputStream(run);
+            runs.add(run);
+        }
+        for(Map.Entry<Integer, List<String>> entry:new TreeMap<>(dataRepeats.removeLines()).entrySet()){
+            writeRecord(appendStream, new RunRecord(dataRepeats.getId(), entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * ends the run for appending, if there is one
+     * @throws IOException when the run cannot be written
+     */
+    private void finishAppending() throws IOException{
+        if(appendStream!=null){
+            appendStream.writeBoolean(false);
+            appendStream.close();
+            appendStream = null;
+        }
+    }
+
+    /**
+     * merges the runs and hands the patients to the consumer, ordered by id, each with all its lines
+     * a run to which patients were appended is read in the order in which they were appended
+     * @param consumer receives the patients
+     * @throws IOException when the runs cannot be read
+     */
+    void merge(Consumer<DataRepeats> consumer) throws IOException{
+        finishAppending();
+        // merge groups of runs until all the runs can be merged at once
+        while(runs.size()>maxRunsPerMerge){
+            List<File> group = new ArrayList<>(runs.subList(0, maxRunsPerMerge));
+            runs.subList(0, maxRunsPerMerge).clear();
+            File mergedRun = createRunFile();
+            try(DataOutputStream dataOutputStream = createOutputStream(mergedRun)){
+                mergeRuns(group, record -> {
+                    try {
+                        writeRecord(dataOutputStream, record);
+                    } catch (IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                dataOutputStream.writeBoolean(false);
+            } catch (UncheckedIOException e){
+                throw e.getCause();
+            }
+            group.forEach(File::delete);
+            runs.add(mergedRun);
+        }
+
+        // group the records by id
+        DataRepeats [] current = new DataRepeats[1];
+        mergeRuns(runs, record -> {
+            if(current[0]!=null && !current[0].getId().equals(record.id)){
+                consumer.accept(current[0]);
+                current[0] = null;
+            }
+            if(current[0]==null){
+                current[0] = new DataRepeats(record.id);
+            }
+            current[0].putLine(record.repeat, record.values);
+        });
+        if(current[0]!=null){
+            consumer.accept(current[0]);
+        }
+    }
+
+    /**
+     * merges runs, handing the records to the consumer ordered by id and repeat
+     * @param runsToMerge the runs
+     * @param consumer    receives the records
+     * @throws IOException when the runs cannot be read
+     */
+    private void mergeRuns(List<File> runsToMerge, Consumer<RunRecord> consumer) throws IOException{
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runsToMerge.size()), Comparator.comparing((RunReader r) -> r.record));
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for(File run:runsToMerge){
+                RunReader runReader = new RunReader(run);
+                readers.add(runReader);
+                if(runReader.next()){
+                    queue.add(runReader);
+                }
+            }
+            while(!queue.isEmpty()){
+                RunReader runReader = queue.poll();
+                consumer.accept(runReader.record);
+                if(runReader.next()){
+                    queue.add(runReader);
+                }
+            }
+        } finally {
+            for(RunReader runReader:readers){
+                runReader.close();
+            }
+        }
+    }
+
+    /**
+     * removes the runs and the temporary directory
+     */
+    @Override
+    public void close(){
+        if(appendStream!=null){
+            try {
+                appendStream.close();
+            } catch (IOException e){
+                // the run is removed anyway
+            }
+            appendStream = null;
+        }
+        runs.forEach(File::delete);
+        runs.clear();
+        File [] files = directory.toFile().listFiles();
+        if(files!=null){
+            Arrays.stream(files).forEach(File::delete);
+        }
+        directory.toFile().delete();
+    }
+
+    /**
+     * returns a new file for a run
+     * @return the file
+     */
+    private File createRunFile(){
+        return directory.resolve("run"+(nrRunsCreated++)+".bin").toFile();
+    }
+
+    /**
+     * opens a run for writing
+     * @param run the run
+     * @return stream to write to
+     * @throws IOException when the run cannot be created
+     */
+    private static DataOutputStream createOutputStream(File run) throws IOException{
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), streamBufferSize));
+    }
+
+    /**
+     * writes a record; each record is preceded by true, the end of the run is marked by false
+     * @param dataOutputStream the stream to write to
+     * @param record           the record
+     * @throws IOException when writing fails
+     */
+    private static void writeRecord(DataOutputStream dataOutputStream, RunRecord record) throws IOException{
+        dataOutputStream.writeBoolean(true);
+        writeString(dataOutputStream, record.id);
+        dataOutputStream.writeInt(record.repeat);
+        dataOutputStream.writeInt(record.values.size());
+        for(String value:record.values){
+            writeString(dataOutputStream, value);
+        }
+    }
+
+    /**
+     * writes a string as its length followed by its UTF-8 bytes, as writeUTF cannot handle long strings
+     * @param dataOutputStream the stream to write to
+     * @param value            the string
+     * @throws IOException when writing fails
+     */
+    private static void writeString(DataOutputStream dataOutputStream, String value) throws IOException{
+        byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+        dataOutputStream.writeInt(bytes.length);
+        dataOutputStream.write(bytes);
+    }
+
+    /**
+     * reads a string written by writeString
+     * @param dataInputStream the stream to read from
+     * @return the string
+     * @throws IOException when reading fails
+     */
+    private static String readString(DataInputStream dataInputStream) throws IOException{
+        byte [] bytes = new byte[dataInputStream.readInt()];
+        dataInputStream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * a line of a patient in a run
+     */
+    private static class RunRecord implements Comparable<RunRecord> {
+        private final String id;
+        private final int repeat;
+        private final List<String> values;
+
+        private RunRecord(String id, int repeat, List<String> values){
+            this.id = id;
+            this.repeat = repeat;
+            this.values = values;
+        }
+
+        @Override
+        public int compareTo(RunRecord runRecord){
+            int compare = id.compareTo(runRecord.id);
+            return compare!=0 ? compare : Integer.compare(repeat, runRecord.repeat);
+        }
+    }
+
+    /**
+     * reads the records of a run one by one
+     */
+    private static class RunReader implements Closeable {
+        private final DataInputStream dataInputStream;
+        private RunRecord record;
+
+        private RunReader(File run) throws IOException{
+            dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(run), streamBufferSize));
+        }
+
+        /**
+         * reads the next record
+         * @return false if there are no more records
+         * @throws IOException when reading fails
+         */
+        private boolean next() throws IOException{
+            if(!dataInputStream.readBoolean()){
+                record = null;
+                return false;
+            }
+            String id = readString(dataInputStream);
+            int repeat = dataInputStream.readInt();
+            int nrValues = dataInputStream.readInt();
+            List<String> values = new ArrayList<>(nrValues);
+            for(int i=0; i<nrValues; i++){
+                values.add(readString(dataInputStream));
+            }
+            record = new RunRecord(id, repeat, values);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException{
+            dataInputStream.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.data.out;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * encodes a row as ISO-8859-1 into a reusable byte array, so rows can be encoded by several threads and written
+ * by a LineWriter afterwards
+ * Characters which don't exist in ISO-8859-1 are encoded as a question mark, the same way LineWriter does.
+ */
+class RowEncoder {
+    private byte [] bytes = new byte[8*1024];
+    private int length = 0;
+
+    /**
+     * removes the encoded row, keeping the array for the next row
+     */
+    void reset(){
+        length = 0;
+    }
+
+    /**
+     * encodes a value
+     * @param value the value
+     */
+    void write(String value){
+        ensureCapacity(length+value.length());
+        for(int i=0; i<value.length(); i++){
+            char c = value.charAt(i);
+            // a surrogate pair is a single character, which is encoded as a single question mark
+            if(Character.isHighSurrogate(c) && i+1<value.length() && Character.isLowSurrogate(value.charAt(i+1))){
+                i++;
+            }
+            bytes[length++] = c<256 ? (byte) c : (byte) '?';
+        }
+    }
+
+    /**
+     * encodes a character
+     * @param c the character
+     */
+    void write(char c){
+        ensureCapacity(length+1);
+        bytes[length++] = c<256 ? (byte) c : (byte) '?';
+    }
+
+    /**
+     * returns a copy of the encoded row
+     * @return the encoded row
+     */
+    byte [] toByteArray(){
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * writes the encoded row
+     * @param lineWriter the writer to use
+     * @throws IOException when writing fails
+     */
+    void writeTo(LineWriter lineWriter) throws IOException{
+        lineWriter.write(bytes, length);
+    }
+
+    /**
+     * makes sure the array can hold a number of bytes
+     * @param capacity the number of bytes
+     */
+    private void ensureCapacity(int capacity){
+        if(capacity>bytes.length){
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length*2));
+        }
+    }
+}
@@ -224,7 +224,7 @@ public class PALGARecoderGUI extends Application {
      * Starts a Thread to do the actual work.
      */
     private void startTask(){
-        logArea.clear();
+        TextAreaAppender.clear();
         GUIWizard GUIWizard = new GUIWizard();
         try {
             if(GUIWizard.startWizard(runParameters)) {
@@ -261,6 +261,7 @@ public class PALGARecoderGUI extends Application {
                 if(inputData!=null) {
                     inputData.translate();
                     inputData.writeOutput();
+                    LogTracker.logSummary();
 
                     Platform.runLater(() -> logger.log(Level.INFO, "Done."));
                 }
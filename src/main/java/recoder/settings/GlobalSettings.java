@@ -19,6 +19,9 @@
 
 package recoder.settings;
 
+import recoder.utils.enumerate.CodebookParserType;
+
+import java.io.File;
 import java.util.*;
 
 /**
@@ -29,6 +32,18 @@ public class GlobalSettings {
     private static Map<String, String> protocolNameToPrefixMap = new TreeMap<>();
     private static List<String> languageList = Arrays.asList("nl-NL", "en-US");
 
+    // local cache for the codebooks retrieved from art-decor
+    private static String cacheDirectory = System.getProperty("user.home")+File.separator+".palgarecoder"+File.separator+"cache";
+    private static long cacheTimeToLiveHours = 24;
+    private static boolean forceCacheRefresh = false;
+
+    // maximum number of translated values remembered by the translation cache; 0 disables it
+    // off by default, as looking up a translation in the concept is cheaper than looking it up in the cache
+    private static int translationCacheSize = 0;
+
+    // parser used to create codebooks from the art-decor xml
+    private static CodebookParserType codebookParserType = CodebookParserType.DOM;
+
     // maybe read from file instead?
     static{
         protocolNameToPrefixMap.put("colonbiopt", "ppcolbio-");
@@ -61,4 +76,84 @@ public class GlobalSettings {
         return protocolNameToPrefixMap.get(protocolName);
     }
 
+    /**
+     * returns the directory in which retrieved codebooks are cached
+     * @return the cache directory
+     */
+    public static String getCacheDirectory(){
+        return cacheDirectory;
+    }
+
+    /**
+     * set the directory in which retrieved codebooks are cached
+     * @param cacheDirectory the cache directory
+     */
+    public static void setCacheDirectory(String cacheDirectory){
+        GlobalSettings.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * returns how long a cached codebook may be used before it is retrieved again. 0 disables the cache
+     * @return time to live in hours
+     */
+    public static long getCacheTimeToLiveHours(){
+        return cacheTimeToLiveHours;
+    }
+
+    /**
+     * set how long a cached codebook may be used before it is retrieved again. 0 disables the cache
+     * @param cacheTimeToLiveHours time to live in hours
+     */
+    public static void setCacheTimeToLiveHours(long cacheTimeToLiveHours){
+        GlobalSettings.cacheTimeToLiveHours = cacheTimeToLiveHours;
+    }
+
+    /**
+     * returns whether codebooks should be retrieved from art-decor even if a valid cached version exists
+     * @return true/false
+     */
+    public static boolean forceCacheRefresh(){
+        return forceCacheRefresh;
+    }
+
+    /**
+     * set whether codebooks should be retrieved from art-decor even if a valid cached version exists
+     * @param forceCacheRefresh true/false
+     */
+    public static void setForceCacheRefresh(boolean forceCacheRefresh){
+        GlobalSettings.forceCacheRefresh = forceCacheRefresh;
+    }
+
+    /**
+     * returns the maximum number of translated values remembered by the translation cache. 0 disables the cache
+     * @return the number of entries
+     */
+    public static int getTranslationCacheSize(){
+        return translationCacheSize;
+    }
+
+    /**
+     * set the maximum number of translated values remembered by the translation cache. 0 disables the cache
+     * @param translationCacheSize the number of entries
+     */
+    public static void setTranslationCacheSize(int translationCacheSize){
+        GlobalSettings.translationCacheSize = Math.max(0, translationCacheSize);
+    }
+
+    /**
+     * returns the parser used to create codebooks from the art-decor xml
+     * @return the parser type
+     */
+    public static CodebookParserType getCodebookParserType(){
+        return codebookParserType;
+    }
+
+    /**
+     * set the parser used to create codebooks from the art-decor xml
+     * @param codebookParserType the parser type
+     */
+    public static void setCodebookParserType(CodebookParserType codebookParserType){
+        GlobalSettings.codebookParserType = codebookParserType;
+    }
+
 }
@@ -44,6 +44,14 @@ public class RunParameters {
     private String transmartPatientId;
     private boolean exportAsWideFormat;
 
+    // settings which influence how the data is processed, not what the output looks like
+    private boolean streamingMode = false;
+    private int translationThreads = 1;
+    private boolean pipelinedMode = false;
+    private long mappedReaderThresholdMB = -1;
+    private long wideMemoryBudgetMB = 256;
+    private boolean groupedWideInput = true;
+
     public RunParameters(){
         this("", GlobalSettings.getDefaultProtocolName(), OutputFormatType.DESCRIPTIONS, OutputFileType.TEXT, "", "", "", true, "");
     }
@@ -187,6 +195,107 @@ public class RunParameters {
         return exportAsWideFormat;
     }
 
+    /**
+     * returns whether the data file should be processed in streaming mode. In streaming mode the data lines are not
+     * kept in memory; the file is read twice instead
+     * @return true/false
+     */
+    public boolean useStreamingMode(){
+        return streamingMode;
+    }
+
+    /**
+     * set whether the data file should be processed in streaming mode
+     * @param streamingMode true/false
+     */
+    public void setStreamingMode(boolean streamingMode){
+        this.streamingMode = streamingMode;
+    }
+
+    /**
+     * returns the number of threads used to translate the data lines; 1 means the lines are translated sequentially
+     * @return the number of threads
+     */
+    public int getTranslationThreads(){
+        return translationThreads;
+    }
+
+    /**
+     * set the number of threads used to translate the data lines
+     * @param translationThreads the number of threads, at least 1
+     */
+    public void setTranslationThreads(int translationThreads){
+        this.translationThreads = Math.max(1, translationThreads);
+    }
+
+    /**
+     * returns whether reading, translating and writing the data lines should run at the same time, each in their
+     * own thread(s). The number of translation threads determines the number of translator threads
+     * @return true/false
+     */
+    public boolean usePipelinedMode(){
+        return pipelinedMode;
+    }
+
+    /**
+     * set whether reading, translating and writing the data lines should run at the same time
+     * @param pipelinedMode true/false
+     */
+    public void setPipelinedMode(boolean pipelinedMode){
+        this.pipelinedMode = pipelinedMode;
+    }
+
+    /**
+     * returns the size above which data files are read using the memory mapped reader; -1 means it is never used
+     * @return the threshold in MB
+     */
+    public long getMappedReaderThresholdMB(){
+        return mappedReaderThresholdMB;
+    }
+
+    /**
+     * set the size above which data files are read using the memory mapped reader
+     * @param mappedReaderThresholdMB the threshold in MB; -1 means it is never used
+     */
+    public void setMappedReaderThresholdMB(long mappedReaderThresholdMB){
+        this.mappedReaderThresholdMB = mappedReaderThresholdMB;
+    }
+
+    /**
+     * returns the memory the lines of the wide format may use before they are written to temporary files;
+     * -1 means they are always kept in memory
+     * @return the memory budget in MB
+     */
+    public long getWideMemoryBudgetMB(){
+        return wideMemoryBudgetMB;
+    }
+
+    /**
+     * set the memory the lines of the wide format may use before they are written to temporary files
+     * @param wideMemoryBudgetMB the memory budget in MB; -1 means they are always kept in memory
+     */
+    public void setWideMemoryBudgetMB(long wideMemoryBudgetMB){
+        this.wideMemoryBudgetMB = wideMemoryBudgetMB;
+    }
+
+    /**
+     * returns whether the wide format should be written patient by patient if the lines of each patient are next
+     * to each other in the data file
+     * @return true/false
+     */
+    public boolean useGroupedWideInput(){
+        return groupedWideInput;
+    }
+
+    /**
+     * set whether the wide format should be written patient by patient if the lines of each patient are next
+     * to each other in the data file
+     * @param groupedWideInput true/false
+     */
+    public void setGroupedWideInput(boolean groupedWideInput){
+        this.groupedWideInput = groupedWideInput;
+    }
+
     /**
      * returns whether the settings are valid
      * @return true/false
@@ -23,16 +23,33 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * stores which messages were logged by a class, to prevent some messages from appearing multiple times
+ * messages may be logged by several translation threads at once
+ * For each message the number of times it occurred is counted, so a summary of the repeated messages can be shown
+ * at the end of a run. To bound the memory used, at most maxMessages distinct messages are remembered; messages
+ * after that are counted, but not shown.
  */
 public class LogTracker {
-    private static Map<Class, List<String>> alreadyLoggedMap = new HashMap<>();
+    private static final Logger logger = LogManager.getLogger(LogTracker.class.getName());
+    private static final int maxMessages = 10000;
+    // the number of repeated messages shown in the summary
+    private static final int maxSummaryMessages = 20;
+
+    private static Map<Class, Map<String, LongAdder>> messageCountMap = new ConcurrentHashMap<>();
+    private static AtomicInteger nrMessages = new AtomicInteger();
+    private static LongAdder nrSuppressedMessages = new LongAdder();
+    private static AtomicBoolean suppressionLogged = new AtomicBoolean();
 
     /**
      * returns whether a messages may ben shown. If it has been shown before, returns false
@@ -41,17 +58,29 @@ public class LogTracker {
      * @return  true/false
      */
     private static boolean mayLogMessage(Class aClass, String message) {
-        if (!alreadyLoggedMap.containsKey(aClass)) {
-            alreadyLoggedMap.put(aClass, new ArrayList<>());
+        Map<String, LongAdder> messageCounts = messageCountMap.computeIfAbsent(aClass, k -> new ConcurrentHashMap<>());
+        LongAdder count = messageCounts.get(message);
+        if(count!=null){
+            count.increment();
+            return false;
         }
-        List<String> loggedMessages = alreadyLoggedMap.get(aClass);
-        if (loggedMessages.contains(message)) {
+        if(nrMessages.get()>=maxMessages){
+            nrSuppressedMessages.increment();
+            if(suppressionLogged.compareAndSet(false, true)){
+                logger.log(Level.ERROR, "More than {} different messages were logged. Further messages will not be shown.", maxMessages);
+            }
             return false;
         }
-        else {
-            loggedMessages.add(message);
-            return true;
+        LongAdder newCount = new LongAdder();
+        newCount.increment();
+        // another thread may have added the message in the meantime
+        count = messageCounts.putIfAbsent(message, newCount);
+        if(count!=null){
+            count.increment();
+            return false;
         }
+        nrMessages.incrementAndGet();
+        return true;
     }
 
     /**
@@ -60,13 +89,42 @@ public class LogTracker {
      * @param message   the message the class wishes to log
      */
     public static void logMessage(Class aClass, String message) {
-        Logger logger = LogManager.getLogger(aClass.getName());
         if(mayLogMessage(aClass, message)){
-            logger.log(Level.ERROR, message);
+            LogManager.getLogger(aClass.getName()).log(Level.ERROR, message);
+        }
+    }
+
+    /**
+     * logs the messages which occurred more than once, most frequent first, and the number of messages which
+     * were not shown
+     */
+    public static void logSummary() {
+        List<Map.Entry<String, Long>> repeatedMessages = new ArrayList<>();
+        for(Map<String, LongAdder> messageCounts:messageCountMap.values()){
+            for(Map.Entry<String, LongAdder> entry:messageCounts.entrySet()){
+                long count = entry.getValue().sum();
+                if(count>1){
+                    repeatedMessages.add(new AbstractMap.SimpleEntry<>(entry.getKey(), count));
+                }
+            }
+        }
+        repeatedMessages.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        if(!repeatedMessages.isEmpty()){
+            logger.log(Level.INFO, "Summary of {} repeated message(s):", repeatedMessages.size());
+            repeatedMessages.stream().limit(maxSummaryMessages).forEach(t -> logger.log(Level.INFO, "message \"{}\" occurred {} times", t.getKey(), String.format(Locale.US, "%,d", t.getValue())));
+            if(repeatedMessages.size()>maxSummaryMessages){
+                logger.log(Level.INFO, "... and {} more repeated message(s)", repeatedMessages.size()-maxSummaryMessages);
+            }
+        }
+        if(nrSuppressedMessages.sum()>0){
+            logger.log(Level.INFO, "{} message(s) were not shown, as more than {} different messages were logged", String.format(Locale.US, "%,d", nrSuppressedMessages.sum()), maxMessages);
         }
     }
 
     public static void clearLog(){
-        alreadyLoggedMap.clear();
+        messageCountMap.clear();
+        nrMessages.set(0);
+        nrSuppressedMessages.reset();
+        suppressionLogged.set(false);
     }
-}
\ No newline at end of file
+}
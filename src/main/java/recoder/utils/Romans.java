@@ -20,7 +20,6 @@
 package recoder.utils;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * class that helps out with the fairly horrible PALGA headernames which can contain roman numbers for repeats
@@ -30,11 +29,16 @@ import java.util.stream.Collectors;
  * We first try to see with which Roman numbers our value may be ending
  * We then sort the matches by length, as the next step will be to check whether the column without the roman number is
  * in the codebook. Hence we first wish to try myCol, and if that fails, myColi (meaning the number would be ii), etc.
+ *
+ * The matching uses a trie of the reversed roman numbers: walking backwards from the end of the headername through
+ * the trie finds all roman numbers the headername ends with, shortest first, in a single pass.
  */
 public class Romans {
     private static final Map<String, String> romanToOutput = new HashMap<>();
     private static final List<String> romanNumbers = new ArrayList<>();
-    private static final Comparator<String> comparator = new Romans().new ListByLengthComparator();
+    // the longest roman number (XVIII) has 5 characters, so a headername ends with at most 5 roman numbers
+    public static final int maxRomanMatches = 5;
+    private static final RomanSuffixNode romanSuffixTrie = new RomanSuffixNode();
 
     static{
         // first 20 roman numbers, which is the max that PALGA uses
@@ -51,6 +55,8 @@ public class Romans {
         romanToOutput.put("XIII", "13"); romanToOutput.put("XIV", "14"); romanToOutput.put("XV", "15");
         romanToOutput.put("XVI", "16"); romanToOutput.put("XVII", "17"); romanToOutput.put("XVIII", "18");
         romanToOutput.put("XIX", "19"); romanToOutput.put("XX", "20"); romanToOutput.put("", "");
+
+        romanNumbers.forEach(romanSuffixTrie::add);
     }
 
     /**
@@ -61,11 +67,34 @@ public class Romans {
      * @return  list of possible romans
      */
     public static List<String> romanNumberMatch(String value){
-        // create a list of the roman numbers that our value ends with
-        List<String> matchedRomans = romanNumbers.stream().parallel().filter(t->value.toUpperCase().endsWith(t)).sequential().collect(Collectors.toList());
-        // sort this list by length
-        Collections.sort(matchedRomans, comparator);
-        return matchedRomans;
+        String [] matches = new String[maxRomanMatches];
+        int nrMatches = romanNumberMatch(value, matches);
+        return new ArrayList<>(Arrays.asList(matches).subList(0, nrMatches));
+    }
+
+    /**
+     * finds the roman numbers a value ends with, without creating any objects
+     * @param value   the headername which may contain a roman number
+     * @param matches array of at least maxRomanMatches elements, which receives the roman numbers (in upper case),
+     *                longest first
+     * @return the number of roman numbers found
+     */
+    public static int romanNumberMatch(String value, String [] matches){
+        int nrMatches = 0;
+        RomanSuffixNode node = romanSuffixTrie;
+        for(int i=value.length()-1; i>=0 && node!=null; i--){
+            node = node.getChild(value.charAt(i));
+            if(node!=null && node.roman!=null){
+                matches[nrMatches++] = node.roman;
+            }
+        }
+        // the trie finds the shortest roman number first
+        for(int i=0; i<nrMatches/2; i++){
+            String match = matches[i];
+            matches[i] = matches[nrMatches-1-i];
+            matches[nrMatches-1-i] = match;
+        }
+        return nrMatches;
     }
 
     /**
@@ -78,15 +107,53 @@ public class Romans {
     }
 
     /**
-     * comparator for sorting by string length
+     * node of the trie of reversed roman numbers; a path from the root spells a roman number from its last
+     * character to its first
      */
-    private class ListByLengthComparator implements Comparator<String>{
-        @Override
-        public int compare(String o1, String o2) {
-            if(o1.length()>o2.length()) return -1;
-            else if (o1.length()<o2.length()) return 1;
-            return 0;
+    private static class RomanSuffixNode {
+        // children for I, V and X
+        private final RomanSuffixNode [] children = new RomanSuffixNode[3];
+        // the roman number which ends at this node, or null
+        private String roman;
+
+        /**
+         * adds a roman number to the trie
+         * @param roman the roman number, in upper case
+         */
+        private void add(String roman){
+            RomanSuffixNode node = this;
+            for(int i=roman.length()-1; i>=0; i--){
+                int index = getIndex(roman.charAt(i));
+                if(node.children[index]==null){
+                    node.children[index] = new RomanSuffixNode();
+                }
+                node = node.children[index];
+            }
+            node.roman = roman;
+        }
+
+        /**
+         * returns the child for a character, ignoring case
+         * @param c the character
+         * @return the child or null if there is none
+         */
+        private RomanSuffixNode getChild(char c){
+            int index = getIndex(c);
+            return index<0 ? null : children[index];
+        }
+
+        /**
+         * returns the index of the child for a character, ignoring case
+         * @param c the character
+         * @return the index or -1 if the character isn't used in roman numbers up to 20
+         */
+        private static int getIndex(char c){
+            switch(c){
+                case 'I': case 'i': return 0;
+                case 'V': case 'v': return 1;
+                case 'X': case 'x': return 2;
+                default: return -1;
+            }
         }
     }
 }
-
@@ -19,7 +19,7 @@
 
 package recoder.utils;
 
-import javafx.application.Platform;
+import javafx.animation.AnimationTimer;
 import javafx.scene.control.TextArea;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
@@ -32,6 +32,10 @@ import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.layout.PatternLayout;
 
 import java.io.Serializable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TextAreaAppender, log4j. Uses the log4j2.xml for its parameters
@@ -39,6 +43,12 @@ import java.io.Serializable;
  * elementType: Name of the corresponding category of elements this plugin belongs under. In our case
  * the appender value means indicates an Appender plugin, which is located in the Appender tag in the xml
  * printObject: set to true for appender plugin
+ *
+ * Log events can arrive from any thread and at a high rate, so the appender doesn't update the TextArea for each
+ * event. The formatted messages are put in a lock-free queue, which is emptied by an AnimationTimer on the JavaFX
+ * Application Thread at most flushesPerSecond times per second. The TextArea shows at most maxLines messages;
+ * these are kept in a ring buffer, so the oldest messages are dropped once the buffer is full. Only the text of the
+ * dropped messages is removed from the TextArea, so it doesn't have to lay out all the messages again.
  */
 @Plugin(
         category = "Core",
@@ -47,7 +57,18 @@ import java.io.Serializable;
         printObject = true
 )
 public class TextAreaAppender extends AbstractAppender {
+    private static final int maxLines = 5000;
+    private static final int flushesPerSecond = 10;
+
     private static TextArea textArea;
+    // messages waiting to be shown; filled by any thread, emptied on the JavaFX Application Thread
+    private static final Queue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger nrPendingMessages = new AtomicInteger();
+    // the messages shown in the TextArea; only used on the JavaFX Application Thread
+    private static final String [] shownMessages = new String[maxLines];
+    private static int firstShownMessage = 0;
+    private static int nrShownMessages = 0;
+    private static AnimationTimer flushTimer;
 
     private TextAreaAppender(String name, Filter filter, Layout<? extends Serializable> layout) {
         super(name, filter, layout);
@@ -80,33 +101,122 @@ public class TextAreaAppender extends AbstractAppender {
     }
 
     /**
-     * Set TextArea for the appender
+     * Set TextArea for the appender and starts showing the messages in it
+     * Has to be called on the JavaFX Application Thread
      *
      * @param textArea TextArea for the appender
      */
     public static void setTextArea(TextArea textArea) {
         TextAreaAppender.textArea = textArea;
+        if(flushTimer==null) {
+            flushTimer = new AnimationTimer() {
+                private long lastFlush = 0;
+
+                @Override
+                public void handle(long now) {
+                    if (now - lastFlush >= TimeUnit.SECONDS.toNanos(1) / flushesPerSecond) {
+                        lastFlush = now;
+                        flush();
+                    }
+                }
+            };
+            flushTimer.start();
+        }
     }
 
     /**
-     * Appender receives a LogEvent and appends it to the textArea
+     * removes all messages, both the ones waiting to be shown and the ones in the TextArea
+     * Has to be called on the JavaFX Application Thread
+     */
+    public static void clear() {
+        while (pendingMessages.poll() != null) {
+            nrPendingMessages.decrementAndGet();
+        }
+        firstShownMessage = 0;
+        nrShownMessages = 0;
+        if (textArea != null) {
+            textArea.clear();
+        }
+    }
+
+    /**
+     * Appender receives a LogEvent and queues it to be shown in the textArea
      *
      * @param event Log event
      */
     @Override
     public void append(LogEvent event) {
-        // format the message and transform it into a String
-        final String message = new String(getLayout().toByteArray(event));
+        // format the message and transform it into a String, as it will appear in the TextArea
+        pendingMessages.add(removeInvalidCharacters(new String(getLayout().toByteArray(event))));
+        // if the messages arrive faster than they are shown, drop the oldest; they wouldn't fit in the TextArea anyway
+        if (nrPendingMessages.incrementAndGet() > maxLines && pendingMessages.poll() != null) {
+            nrPendingMessages.decrementAndGet();
+        }
+    }
 
-        // append log text to TextArea, run on the JavaFX Application Thread
-        Platform.runLater(() -> {
-            try {
-                if (textArea != null) {
-                    textArea.appendText(message);
+    /**
+     * shows the waiting messages in the TextArea; runs on the JavaFX Application Thread
+     */
+    private static void flush() {
+        if (textArea == null || pendingMessages.isEmpty()) {
+            return;
+        }
+        try {
+            StringBuilder newText = new StringBuilder();
+            // the messages in the TextArea before this flush, and the length of those that are dropped
+            int nrPreviouslyShown = nrShownMessages;
+            int droppedLength = 0;
+            // the length of the new messages that are dropped before they were shown
+            int droppedNewLength = 0;
+            String message;
+            while ((message = pendingMessages.poll()) != null) {
+                nrPendingMessages.decrementAndGet();
+                newText.append(message);
+                if (nrShownMessages == maxLines) {
+                    // the oldest message is dropped, which is either in the TextArea or at the start of the new text
+                    String droppedMessage = shownMessages[firstShownMessage];
+                    shownMessages[firstShownMessage] = null;
+                    if (nrPreviouslyShown > 0) {
+                        droppedLength += droppedMessage.length();
+                        nrPreviouslyShown--;
+                    } else {
+                        droppedNewLength += droppedMessage.length();
+                    }
+                    firstShownMessage = (firstShownMessage + 1) % maxLines;
+                    nrShownMessages--;
                 }
-            } catch (Exception e) {
-                System.err.println("Exception occurred while appending to the text area: " + e.getMessage());
+                shownMessages[(firstShownMessage + nrShownMessages) % maxLines] = message;
+                nrShownMessages++;
+            }
+
+            // remove the dropped messages, so the TextArea doesn't keep growing, and add the new ones
+            if (droppedLength > 0) {
+                textArea.deleteText(0, droppedLength);
+            }
+            textArea.appendText(newText.substring(droppedNewLength));
+        } catch (Exception e) {
+            System.err.println("Exception occurred while appending to the text area: " + e.getMessage());
+        }
+    }
+
+    /**
+     * removes the characters the TextArea doesn't accept, e.g. the \r of a \r\n, so the length of a message is
+     * the length it has in the TextArea
+     * @param message the message
+     * @return the message without invalid characters
+     */
+    private static String removeInvalidCharacters(String message) {
+        StringBuilder stringBuilder = null;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            boolean invalid = c == 0x7F || (c < 0x20 && c != '\n' && c != '\t');
+            if (invalid && stringBuilder == null) {
+                stringBuilder = new StringBuilder(message.length());
+                stringBuilder.append(message, 0, i);
+            } else if (!invalid && stringBuilder != null) {
+                stringBuilder.append(c);
             }
-        });
+        }
+        return stringBuilder == null ? message : stringBuilder.toString();
     }
 }
\ No newline at end of file
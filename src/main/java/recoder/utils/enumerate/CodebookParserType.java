@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 NKI/AvL
+ *
+ * This file is part of PALGARecoder.
+ *
+ * PALGARecoder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PALGARecoder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PALGARecoder. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package recoder.utils.enumerate;
+
+/**
+ * parsers we can use to create a codebook from the art-decor xml
+ * dom --> builds the complete document in memory and walks it
+ * stax --> handles the document in a single pass, keeping only the concept that is being parsed in memory
+ */
+public enum CodebookParserType {
+    DOM ("DOM"),
+    STAX ("StAX");
+
+    private final String prettyString;
+
+    CodebookParserType(String prettyString){
+        this.prettyString = prettyString;
+    }
+
+    public String getPrettyString(){
+        return prettyString;
+    }
+
+    public static CodebookParserType getEnum(String prettyString){
+        for(CodebookParserType codebookParserType: CodebookParserType.values()){
+            if(codebookParserType.prettyString.equalsIgnoreCase(prettyString)){
+                return codebookParserType;
+            }
+        }
+        return null;
+    }
+}